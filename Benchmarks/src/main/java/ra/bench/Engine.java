@@ -0,0 +1,72 @@
+package ra.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+//Method handles onto Algo.Bench
+//The engine is in the default package, which named packages cannot import, so it is linked by name here
+//Handles are static final, so the JIT inlines the calls like direct ones
+final class Engine {
+
+    private static final MethodHandle PATIENT;
+    private static final MethodHandle LINEAR_PREDICTOR;
+    private static final MethodHandle COHORT;
+    private static final MethodHandle BOOTSTRAP;
+    private static final MethodHandle TRIAL_SCRATCH;
+    private static final MethodHandle TRIAL;
+    private static final MethodHandle READ_PATIENTS;
+    private static final MethodHandle EXPORT_PATIENTS;
+
+    static {
+        try {
+            Class<?> bench = Class.forName("Algo$Bench");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            PATIENT = lookup.findStatic(bench, "patient", MethodType.methodType(Object.class, long.class));
+            LINEAR_PREDICTOR = lookup.findStatic(bench, "linearPredictor", MethodType.methodType(double.class, Object.class, double.class));
+            COHORT = lookup.findStatic(bench, "cohort", MethodType.methodType(Object.class, int.class));
+            BOOTSTRAP = lookup.findStatic(bench, "bootstrap", MethodType.methodType(Object.class, Object.class));
+            TRIAL_SCRATCH = lookup.findStatic(bench, "trialScratch", MethodType.methodType(Object.class, Object.class));
+            TRIAL = lookup.findStatic(bench, "trial", MethodType.methodType(double.class, Object.class, Object.class, long.class));
+            READ_PATIENTS = lookup.findStatic(bench, "readPatients", MethodType.methodType(int.class, String.class));
+            EXPORT_PATIENTS = lookup.findStatic(bench, "exportPatients", MethodType.methodType(void.class, Object.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Engine() {
+    }
+
+    static Object patient(long index) throws Throwable {
+        return (Object) PATIENT.invokeExact(index);
+    }
+
+    static double linearPredictor(Object patient, double k) throws Throwable {
+        return (double) LINEAR_PREDICTOR.invokeExact(patient, k);
+    }
+
+    static Object cohort(int size) throws Throwable {
+        return (Object) COHORT.invokeExact(size);
+    }
+
+    static Object bootstrap(Object cohort) throws Throwable {
+        return (Object) BOOTSTRAP.invokeExact(cohort);
+    }
+
+    static Object trialScratch(Object bootstrap) throws Throwable {
+        return (Object) TRIAL_SCRATCH.invokeExact(bootstrap);
+    }
+
+    static double trial(Object bootstrap, Object scratch, long t) throws Throwable {
+        return (double) TRIAL.invokeExact(bootstrap, scratch, t);
+    }
+
+    static int readPatients(String filename) throws Throwable {
+        return (int) READ_PATIENTS.invokeExact(filename);
+    }
+
+    static void exportPatients(Object cohort, String filename) throws Throwable {
+        EXPORT_PATIENTS.invokeExact(cohort, filename);
+    }
+}
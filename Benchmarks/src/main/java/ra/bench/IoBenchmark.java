@@ -0,0 +1,49 @@
+package ra.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//readPatients and exportPatients on a generated cohort, in both dataset formats
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class IoBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"csv", "cohort"})
+    public String format;
+
+    private Object cohort;
+    private File input;
+    private File output;
+
+    @Setup
+    public void setup() throws Throwable {
+        cohort = Engine.cohort(size);
+        input = File.createTempFile("ra-read", "." + format);
+        output = File.createTempFile("ra-write", "." + format);
+        Engine.exportPatients(cohort, input.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        input.delete();
+        output.delete();
+    }
+
+    @Benchmark
+    public int readPatients() throws Throwable {
+        return Engine.readPatients(input.getPath());
+    }
+
+    @Benchmark
+    public void exportPatients() throws Throwable {
+        Engine.exportPatients(cohort, output.getPath());
+    }
+}
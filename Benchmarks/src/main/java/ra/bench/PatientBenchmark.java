@@ -0,0 +1,32 @@
+package ra.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//Per-patient generation cost: construction with its draws and ORs, and the linear predictor
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class PatientBenchmark {
+
+    private long index;
+    private Object patient;
+
+    @Setup
+    public void setup() throws Throwable {
+        patient = Engine.patient(0);
+    }
+
+    @Benchmark
+    public Object patientAndOrs() throws Throwable {
+        return Engine.patient(index++);
+    }
+
+    @Benchmark
+    public double linearPredictor() throws Throwable {
+        return Engine.linearPredictor(patient, -0.065);
+    }
+}
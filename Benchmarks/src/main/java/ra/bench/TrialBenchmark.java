@@ -0,0 +1,32 @@
+package ra.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//One bootstrap trial of simulate, the resample plus the 13 metrics
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class TrialBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private Object bootstrap;
+    private Object scratch;
+    private long trial;
+
+    @Setup
+    public void setup() throws Throwable {
+        bootstrap = Engine.bootstrap(Engine.cohort(size));
+        scratch = Engine.trialScratch(bootstrap);
+    }
+
+    @Benchmark
+    public double trial() throws Throwable {
+        return Engine.trial(bootstrap, scratch, trial++);
+    }
+}
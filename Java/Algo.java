@@ -1,348 +1,854 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.random.RandomGenerator;
 
 public class Algo {
 
-    private static Random rng = new Random(67); //For reproducibility
-    private static ArrayList<Patient> patients = new ArrayList<>();
-    private static ArrayList<Patient> ageGroup1 = new ArrayList<>(); //Age <25
-    private static ArrayList<Patient> ageGroup2 = new ArrayList<>(); //Age 25-54
-    private static ArrayList<Patient> ageGroup3 = new ArrayList<>(); //Age 55+
+    private static long seed = 67; //Master seed, for reproducibility
+    private static int threads = Runtime.getRuntime().availableProcessors(); //Worker threads for generation and bootstrap
+    private static final int BLOCK = 1 << 16; //Patients per generation block
+    private static RandomStreams.Generator generator = RandomStreams.Generator.PHILOX; //Patient draws, see RandomStreams.Generator
+    private static Strata strata = Strata.standard(); //Subgroups and metrics of the bootstrap, one row of the results each
+    private static int trials = 2_500; //Number of bootstrap trials for prevalence calculation
+    private static Summary.Mode summary = Summary.Mode.EXACT; //SKETCH keeps memory flat for 10^5-10^6 trials
+    private static final int TRIAL_CHUNK = 256; //Trials summarized together before merging
+    private static double precision = 0.0; //When > 0, run trials in batches until every percentile's Monte Carlo SE is below precision x its CI width
+    private static int batchTrials = 500; //Trials per adaptive batch
+    private static int maxTrials = 100_000; //Trial budget of an adaptive run
+    private static final int SEGMENT_TRIALS = 16 * TRIAL_CHUNK; //Fixed-count trials run between checkpoint saves
+    private static boolean checkpoints = false; //Save progress to <results>.checkpoint and resume from it, see Checkpoint
+    private static int checkpointSeconds = 60; //Minimum time between checkpoint saves
+    private static String resultCache = null; //Directory of cached runs, see ResultCache, null always recomputes; --result-cache turns it on
+    private static long resultCacheBytes = 1L << 30; //Least recently used runs are evicted beyond this size
+    private static int featureMask = RiskKernel.ALL; //Features summed into the linear predictor, see RiskKernel
+    private static int serverPort = 8080; //java Algo serve, see JobServer
+    private static int serverCohorts = 4; //Loaded datasets and generated populations the server keeps warm
+    private static String serverJobs = "Jobs"; //Directory of the server's results files and token
+    private static String serverData = "."; //Directory the server's jobs may load datasets from
+
+    //Age and OR terms that do not change per patient
+    private static final int AGES = 100; //Generated ages are 0-99
+    private static final double[] AGE_TERMS = ageTerms();
+    private static final double[] BASELINE = logNormal(0.0043, 0.0050);
+    private static final double[] SMOKING_OR = logNormal(1.32, 1.55);
+    private static final double[] HETERO_OR = logNormal(1.5, 2.5);
+    private static final double[] HOMO_OR = logNormal(5.0, 6.0);
+    private static final double[] INTERACTION_HETERO_OR = logNormal(4.2, 13.1);
+    private static final double[] INTERACTION_HOMO_OR = logNormal(7.2, 34.2);
+    private static Bootstrap.Resampling resampling = Bootstrap.Resampling.MULTINOMIAL; //Bootstrap weights per trial, STRATIFIED for rare strata
+    private static boolean controlVariate = false; //Count patients by their risk instead of their 0/1 case draw, see Bootstrap
+    private static double carrierTilt = 1.0; //Importance sampling: > 1 draws each risk allele copy this much more often, patients are reweighted
+    private static Cohort patients = new ArrayCohort(0);
+    private static WritableCohort.Storage storage = WritableCohort.Storage.HEAP; //DIRECT or MAPPED for cohorts beyond the heap
     private static int n = 1_000_000; //Number of patients to simulate
     @SuppressWarnings("unused")
     private static double decayRate = -0.065; //Decay rate for BMI OR with age
 
     public static void main(String[] args) throws Exception {
         //generatePatients(27, "Dataset.csv", decayRate);
-        readPatients("Dataset5.csv");
-        simulate("Results5.csv");
+        //streamPatients(27, "Dataset.csv", decayRate); //Same file, without keeping the cohort in memory
+        //generatePatients(27, "Dataset.cohort", decayRate); //Binary, loads in milliseconds
+        //virtualPatients(27, decayRate); //No dataset, every patient is recomputed from its index when read
+        //sweep(new int[] {23, 25, 27, 29, 31}, new double[] {decayRate}, "Results"); //Whole sensitivity table in one run
+        args = options(args);
+        if (args.length == 3 && args[0].equals("shard")) {
+            //java Algo shard <index> <count>, one process per shard, each writes Results5.shard<index>.partial
+            readPatients("Dataset5.csv");
+            simulateShard("Results5.csv", Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        } else if (args.length == 2 && args[0].equals("merge")) {
+            //java Algo merge <count>, once every shard has finished
+            mergeShards("Results5.csv", Integer.parseInt(args[1]));
+        } else if (args.length >= 1 && args[0].equals("serve")) {
+            //java Algo serve [port], runs scenarios posted to http://localhost:<port>/run until killed
+            JobServer.Spec defaults = new JobServer.Spec(null, 27, decayRate, n, trials, seed);
+            int port = (args.length > 1) ? Integer.parseInt(args[1]) : serverPort;
+            new JobServer(port, threads, serverCohorts, defaults, serverJobs, serverData).start();
+        } else {
+            readPatients("Dataset5.csv");
+            simulate("Results5.csv");
+        }
     }   
     
+    //Apply the leading --options and return the arguments after them
+    //--result-cache[=<directory>] reuses and extends finished runs in ResultCache/ or the given directory
+    private static String[] options(String[] args) {
+        int a = 0;
+        for (; a < args.length && args[a].startsWith("--"); a++) {
+            if (args[a].equals("--result-cache")) {
+                resultCache = "ResultCache";
+            } else if (args[a].startsWith("--result-cache=")) {
+                resultCache = args[a].substring("--result-cache=".length());
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[a]);
+            }
+        }
+        return Arrays.copyOfRange(args, a, args.length);
+    }
+
     //Generate synthetic patients
     public static void generatePatients(int mean, String filename, double k) throws Exception {
         /*
-        Works on 1,000,000 patients in ~2 minutes
-        Works on 250,000 patients in ~30 seconds
-        Works on 100,000 patients in ~12 seconds
+        Works on 1,000,000 patients in ~2 seconds on one core, including export
+        Blocks are generated in parallel, so this scales with threads
         */
 
-        //Generate patients
-        for (int i = 0; i < n; i++) {
-            Patient p = new Patient(i, mean);
+        Metrics.GLOBAL.clear(); //Phases of the previous cohort
+        Metrics.Span span = Metrics.GLOBAL.start("generate", "patients");
+        //A MAPPED cohort is generated straight into its .cohort file, which then needs no export
+        boolean inPlace = (storage == WritableCohort.Storage.MAPPED) && filename.endsWith(BinaryCohort.EXTENSION);
+        boolean weighted = carrierTilt != 1.0;
+        patients = generate(mean, k, inPlace ? OffHeapCohort.mapped(filename, n, weighted) : WritableCohort.create(storage, n, weighted));
+        span.end(n);
+        if (!inPlace) {
+            exportPatients(patients, filename);
+        }
+    }
+
+    //Generate n patients into cohort
+    private static WritableCohort generate(int mean, double k, WritableCohort cohort) throws Exception {
+        cohort.setParameters(new Cohort.Parameters(seed, mean, k));
+        int blocks = (n + BLOCK - 1) / BLOCK;
+
+        //Generate patients block by block, each worker takes whole blocks
+        parallel(blocks, Patient::new, (p, block) -> generateBlock(p, block, mean, k, cohort, block * BLOCK));
+        cohort.setSize(n);
+        return cohort;
+    }
+
+    //Generate synthetic patients straight to disk without keeping the cohort in memory
+    //Workers generate and format fixed-size batches, the calling thread writes them out in order
+    //At most two batches per worker are in flight, so memory does not grow with n
+    //Writes the same file as generatePatients for the same seed, mean and k
+    public static void streamPatients(int mean, String filename, double k) throws Exception {
+        Metrics.Span span = Metrics.GLOBAL.start("streamPatients", "patients");
+        int blocks = (n + BLOCK - 1) / BLOCK;
+        int workers = Math.max(1, Math.min(threads, blocks));
+        int inFlight = Math.min(2 * workers, blocks);
+        BlockingQueue<Batch> free = new ArrayBlockingQueue<>(inFlight);
+        List<BlockingQueue<Batch>> ready = new ArrayList<>(); //Block b is handed over in slot b % inFlight
+        for (int b = 0; b < inFlight; b++) {
+            free.add(new Batch());
+            ready.add(new ArrayBlockingQueue<>(1));
+        }
+        AtomicInteger next = new AtomicInteger();
+
+        //A worker takes a free batch before claiming a block, so the next block to write always has a batch
+        ExecutorService stages = Executors.newSingleThreadExecutor();
+        Future<?> generation = stages.submit(() -> {
+            parallel(workers, Patient::new, (p, w) -> {
+                try {
+                    while (true) {
+                        Batch batch = free.take();
+                        int block = next.getAndIncrement();
+                        if (block >= blocks) {
+                            return;
+                        }
+                        generateBlock(p, block, mean, k, batch.patients, 0);
+                        batch.text.setLength(0);
+                        CohortWriter.format(batch.patients, 0, Math.min(BLOCK, n - block * BLOCK), (long) block * BLOCK, batch.text);
+                        ready.get(block % inFlight).put(batch);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            return null;
+        });
+
+        try (CohortWriter out = new CohortWriter(filename, carrierTilt != 1.0)) {
+            for (int block = 0; block < blocks; block++) {
+                Batch batch = ready.get(block % inFlight).poll(100, TimeUnit.MILLISECONDS);
+                while (batch == null) {
+                    if (generation.isDone()) {
+                        generation.get(); //Rethrows a failed worker
+                        throw new IllegalStateException("Generation stopped before block " + block);
+                    }
+                    batch = ready.get(block % inFlight).poll(100, TimeUnit.MILLISECONDS);
+                }
+                out.write(batch.text);
+                free.put(batch);
+            }
+            generation.get();
+        } finally {
+            stages.shutdownNow();
+        }
+        span.end(n);
+    }
+
+    //Reusable buffers for one block in flight in streamPatients
+    private static class Batch {
+        private final ArrayCohort patients = new ArrayCohort(BLOCK, carrierTilt != 1.0);
+        private final StringBuilder text = new StringBuilder();
+    }
+
+    //Generate the patients of one block into out, starting at row offset
+    //Draws are taken patient by patient, then the whole block is scored at once by the column kernel
+    private static void generateBlock(Patient p, int block, int mean, double k, WritableCohort out, int offset) {
+        if (p.kernel == null) {
+            p.kernel = new RiskKernel(BLOCK);
+        }
+        RiskKernel kernel = p.kernel;
+        int start = block * BLOCK;
+        int count = Math.min(n, start + BLOCK) - start;
+        for (int j = 0; j < count; j++) {
+            p.seek(start + j);
+            p.sample(mean);
             p.setORS();
-            double z = linearPredictor(p, k);
-            double risk = sigmoid(z);
-            p.riskAssessment = risk;
-            patients.add(p);
+            features(p, k);
+            for (int f = 0; f < RiskKernel.FEATURES; f++) {
+                kernel.features[f][j] = p.features[f];
+            }
+            kernel.outcome[j] = p.random.nextDouble();
+            out.set(offset + j, p.age, p.bmiRaw, 0.0, 0, p.alleleCount);
+            if (out.isWeighted()) {
+                out.setWeight(offset + j, alleleWeight(p.alleleCount));
+            }
         }
 
+        kernel.score(count, featureMask);
+
         //Determine condition status based on risk assessment
-        for (Patient p : patients) {
-            double random = rng.nextDouble();
-            if (random < p.riskAssessment) {
-                p.hasRA = 1;
-            } else {
-                p.hasRA = 0;
+        for (int j = 0; j < count; j++) {
+            double risk = kernel.risk[j];
+            out.setRisk(offset + j, risk, (kernel.outcome[j] < risk) ? 1 : 0);
+        }
+    }
+
+    //Run every combination of under-25 BMI means and BMI decay rates on one shared population
+    //Everything but the BMI shift is drawn once (common random numbers), from the same block streams as generatePatients,
+    //so scenario (mean, k) reproduces generatePatients(mean, ..., k) followed by simulate
+    //Results go to <prefix>_mean<mean>_k<k>.csv, scenarios run concurrently and split the worker threads
+    public static void sweep(int[] means, double[] ks, String prefix) throws Exception {
+        Metrics.GLOBAL.clear();
+        Covariates covariates = covariates(n, seed, threads, Metrics.GLOBAL);
+
+        int scenarios = means.length * ks.length;
+        int concurrent = Math.max(1, Math.min(threads, scenarios));
+        int threadsEach = Math.max(1, threads / concurrent);
+        parallel(concurrent, scenarios, () -> null, (unused, s) -> {
+            int mean = means[s / ks.length];
+            double k = ks[s % ks.length];
+            simulate(covariates.scenario(mean, k), prefix + "_mean" + mean + "_k" + k + ".csv", threadsEach, seed, trials,
+                    new Metrics());
+        });
+    }
+
+    //Draw the covariates of a population of size patients from seed, on the given number of threads
+    static Covariates covariates(int size, long seed, int threads, Metrics metrics) throws Exception {
+        Metrics.Span span = metrics.start("covariates", "patients");
+        Covariates covariates = new Covariates(size, seed);
+        int blocks = (size + BLOCK - 1) / BLOCK;
+        parallel(threads, blocks, () -> new Patient(seed), (p, block) -> drawCovariates(p, block, covariates));
+        span.end(size);
+        return covariates;
+    }
+
+    //Per-patient draws that do not depend on the BMI mean or decay rate
+    static final class Covariates {
+        private final long seed;
+        private final int[] age;
+        private final double[] bmiDraw;
+        private final byte[] alleleCount;
+        private final double[] logOdds; //Linear predictor without the BMI term
+        private final double[] outcome; //Uniform compared against the risk
+
+        private Covariates(int n, long seed) {
+            this.seed = seed;
+            this.age = new int[n];
+            this.bmiDraw = new double[n];
+            this.alleleCount = new byte[n];
+            this.logOdds = new double[n];
+            this.outcome = new double[n];
+        }
+
+        //Cohort for one scenario, only the BMI term, risk and outcome are recomputed
+        WritableCohort scenario(int mean, double k) throws Exception {
+            WritableCohort cohort = WritableCohort.create(storage, age.length, carrierTilt != 1.0);
+            double[] bmiTable = bmiLogORs(k);
+            boolean withBmi = (featureMask & RiskKernel.BMI) != 0;
+            for (int i = 0; i < age.length; i++) {
+                double bmiRaw = bmiRaw(age[i], bmiDraw[i], mean);
+                double z = logOdds[i];
+                if (withBmi) {
+                    double logOR = (age[i] < AGES) ? bmiTable[age[i]] : bmiLogOR(age[i], k);
+                    z += logOR * ((bmiRaw - 27.0) / 5.0);
+                }
+                double risk = sigmoid(z);
+                cohort.set(i, age[i], bmiRaw, risk, (outcome[i] < risk) ? 1 : 0, alleleCount[i]);
+                if (cohort.isWeighted()) {
+                    cohort.setWeight(i, alleleWeight(alleleCount[i]));
+                }
+            }
+            cohort.setSize(age.length);
+            cohort.setParameters(new Cohort.Parameters(seed, mean, k));
+            return cohort;
+        }
+    }
+
+    //Same draws in the same order as generateBlock
+    private static void drawCovariates(Patient p, int block, Covariates out) {
+        int start = block * BLOCK;
+        int end = Math.min(out.age.length, start + BLOCK);
+        for (int i = start; i < end; i++) {
+            p.seek(i);
+            p.sample(27); //The mean only shifts bmiRaw, not the draw
+            p.setORS();
+            features(p, 0.0);
+            double z = RiskKernel.sum(p.features, featureMask & ~RiskKernel.BMI); //The BMI term comes last in the sum
+            out.age[i] = p.age;
+            out.bmiDraw[i] = p.bmiDraw;
+            out.alleleCount[i] = (byte) p.alleleCount;
+            out.logOdds[i] = z;
+            out.outcome[i] = p.random.nextDouble();
+        }
+    }
+
+    //Cohort of n patients that stores nothing, see VirtualCohort
+    public static void virtualPatients(int mean, double k) {
+        if (generator != RandomStreams.Generator.PHILOX) {
+            throw new IllegalStateException("Virtual cohorts need the PHILOX generator to recompute patients by index");
+        }
+        Metrics.GLOBAL.clear();
+        patients = new VirtualCohort(n, mean, k);
+    }
+
+    //Zero-storage cohort, a patient's attributes are recomputed from its index on every read
+    //Rows equal those of generatePatients(mean, ..., k) with the same seed; each thread keeps its last patient,
+    //so reading several attributes of one patient computes it once
+    private static final class VirtualCohort implements Cohort {
+        private final int size;
+        private final int mean;
+        private final double k;
+        private final Parameters parameters;
+        private final ThreadLocal<Row> rows = ThreadLocal.withInitial(Row::new);
+
+        private static final class Row {
+            private final Patient p = new Patient();
+            private long index = -1;
+            private double risk;
+            private int hasRA;
+        }
+
+        private VirtualCohort(int size, int mean, double k) {
+            this.size = size;
+            this.mean = mean;
+            this.k = k;
+            this.parameters = new Parameters(seed, mean, k);
+        }
+
+        private Row row(int i) {
+            Row row = rows.get();
+            if (row.index != i) {
+                Patient p = row.p;
+                p.seek(i);
+                p.sample(mean);
+                p.setORS();
+                features(p, k);
+                row.risk = sigmoid(RiskKernel.sum(p.features, featureMask));
+                row.hasRA = (p.random.nextDouble() < row.risk) ? 1 : 0;
+                row.index = i;
             }
+            return row;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int age(int i) {
+            return row(i).p.age;
+        }
+
+        @Override
+        public double bmi(int i) {
+            return row(i).p.bmiRaw;
+        }
+
+        @Override
+        public double risk(int i) {
+            return row(i).risk;
+        }
+
+        @Override
+        public int hasRA(int i) {
+            return row(i).hasRA;
+        }
+
+        @Override
+        public int alleleCount(int i) {
+            return row(i).p.alleleCount;
+        }
+
+        @Override
+        public double weight(int i) {
+            return alleleWeight(row(i).p.alleleCount);
+        }
+
+        @Override
+        public boolean isWeighted() {
+            return carrierTilt != 1.0;
         }
 
-        exportPatients(patients, filename);
+        @Override
+        public Parameters parameters() {
+            return parameters;
+        }
     }
 
+    //Reads binary cohort files (see BinaryCohort) or the CSV dataset format
     public static void readPatients(String filename) throws Exception {
-        FileReader fr = new FileReader(new File(filename));
-        Scanner sc = new Scanner(fr);
-        sc.nextLine(); //Skip header
-
-        while (sc.hasNextLine()) {
-            String line = sc.nextLine();
-            String[] parts = line.split(",");
-            Patient p = new Patient(0, 27); //Dummy patient
-            p.id = parts[0];
-            p.age = Integer.parseInt(parts[1]);
-            p.bmiRaw = Double.parseDouble(parts[2]);
-            p.riskAssessment = Double.parseDouble(parts[3]);
-            p.hasRA = Integer.parseInt(parts[4]);
-            patients.add(p);
-        }
-        sc.close();
+        Metrics.GLOBAL.clear();
+        patients = load(filename, threads, Metrics.GLOBAL);
         n = patients.size();
+    }
 
-        //Categorize patients into age groups
-        for (Patient p : patients) {
-            if (p.age < 25) {
-                ageGroup1.add(p);
-            } else if (p.age >= 25 && p.age < 55) {
-                ageGroup2.add(p);
-            } else {
-                ageGroup3.add(p);
-            }
+    //Cohort of a dataset file, read on the given number of threads
+    static Cohort load(String filename, int threads, Metrics metrics) throws Exception {
+        Metrics.Span span = metrics.start("readPatients", "patients");
+        Cohort loaded;
+        if (BinaryCohort.isBinary(filename)) {
+            //Memory-mapped, the columns are read in place
+            loaded = BinaryCohort.open(filename);
+        } else {
+            //Count the rows of every chunk, then parse the chunks into their slots in parallel
+            //Ids are not kept, rows are stored in file order so P<i> is row i
+            CohortReader reader = CohortReader.open(filename);
+            parallel(threads, reader.chunks(), () -> reader, CohortReader::count);
+            WritableCohort cohort = WritableCohort.create(storage, reader.rows(), reader.weighted());
+            parallel(threads, reader.chunks(), () -> reader, (r, c) -> r.parse(c, cohort));
+            cohort.setSize(cohort.capacity());
+            loaded = cohort;
         }
+        span.end(loaded.size());
+        return loaded;
     }
 
     public static void simulate(String filename) throws Exception {
+        simulate(patients, filename, threads, seed, trials, new Metrics());
+    }
 
-        int trials = 2_500; //Number of trials for prevalence calculation
-        double[] riskResults = new double[trials];
-        double[] prevalenceResults = new double[trials];
-        double[] age1PrevalenceResults = new double[trials];
-        double[] age2PrevalenceResults = new double[trials];
-        double[] age3PrevalenceResults = new double[trials];
-        double[] bmiResults = new double[trials];
-        double[] bmi1Results = new double[trials];
-        double[] bmi2Results = new double[trials];
-        double[] bmi3Results = new double[trials];
-        double[] obesityResults = new double[trials];
-        double[] obesity1Results = new double[trials];
-        double[] obesity2Results = new double[trials];
-        double[] obesity3Results = new double[trials];
-
-        for (int t = 0; t < trials; t++) {
-            //Calculate prevalence
-            int count = 0; //Counter for patients with the condition
-            double avgBmi = 0.0;
-            int obesity = 0;
-            int countAge1 = 0;
-            int age1 = 0;
-            double avgBmi1 = 0.0;
-            int obesity1 = 0;
-            int countAge2 = 0;
-            int age2 = 0;
-            double avgBmi2 = 0.0;
-            int obesity2 = 0;
-            int countAge3 = 0;
-            int age3 = 0;
-            double avgBmi3 = 0.0;
-            int obesity3 = 0;
-            double averageRisk = 0.0;
-
-            ArrayList<Patient> trialPatients = new ArrayList<>();
-
-            //Bootstrap resampling
-            for (int i = 0; i < n; i++) {
-                trialPatients.add(patients.get(rng.nextInt(n)));
+    //Bootstrap one cohort on the given number of worker threads, trials draw from seed's bootstrap streams
+    //Phases are recorded in metrics as they end
+    static void simulate(Cohort cohort, String filename, int threads, long seed, int trials, Metrics metrics) throws Exception {
+        int count = strata.metrics();
+        int[] needed = new int[count]; //Trials each metric needed to converge, adaptive runs only
+        Arrays.fill(needed, -1);
+        Checkpoint.State state = new Checkpoint.State(0, needed, Summary.create(summary, count));
+        Checkpoint.Scenario scenario = (checkpoints || resultCache != null) ? scenario(cohort, seed, trials) : null;
+
+        //A cached run of this scenario is either the answer, or the start of a longer fixed-count run
+        ResultCache cache = (resultCache != null) ? new ResultCache(resultCache, resultCacheBytes) : null;
+        if (cache != null) {
+            Metrics.Span span = metrics.start("resultCache", "trials");
+            ResultCache.Entry cached = cache.get(scenario);
+            span.end((cached != null) ? cached.run() : 0);
+            if (cached != null && (precision > 0 || cached.run() == trials)) {
+                System.out.println("Cached results for " + filename + ", " + cached.run() + " trials");
+                fold(cached.results(), cached.tail(), cached.run() - cached.boundary());
+                report(cohort.size(), filename, new Checkpoint.State(cached.run(), cached.needed(), cached.results()), metrics);
+                return;
+            }
+            if (cached != null && cached.run() < trials) {
+                System.out.println("Extending the cached " + cached.run() + " trials of " + filename);
+                state = new Checkpoint.State(cached.boundary(), needed, cached.results());
             }
+        }
+        Checkpoint checkpoint = null;
+        if (checkpoints) {
+            checkpoint = new Checkpoint(Checkpoint.file(filename), scenario, checkpointSeconds);
+            Checkpoint.State saved = checkpoint.load();
+            if (saved != null && saved.run() > state.run()) {
+                System.out.println("Resuming " + filename + " after " + saved.run() + " trials");
+                state = saved;
+            }
+        }
 
-            //Calculate risk and prevalence in the trial sample
-            for (Patient p : trialPatients) {
-                averageRisk += p.riskAssessment;
-                if (p.hasRA == 1) {
-                    count++;
-                    avgBmi += p.bmiRaw;
-                    if (p.bmiRaw >= 30.0) obesity++;
-                    if (p.age < 25) {
-                        countAge1++;
-                        avgBmi1 += p.bmiRaw;
-                        if (p.bmiRaw >= 30.0) obesity1++;
-                    } else if (p.age < 55) {
-                        countAge2++;
-                        avgBmi2 += p.bmiRaw;
-                        if (p.bmiRaw >= 30.0) obesity2++;
-                    } else {
-                        countAge3++;
-                        avgBmi3 += p.bmiRaw;
-                        if (p.bmiRaw >= 30.0) obesity3++;
-                    }
+        Bootstrap bootstrap = new Bootstrap(cohort, strata, controlVariate);
+        int boundary;
+        int run;
+        Summary[] tail = Summary.create(summary, count);
+        if (precision > 0) {
+            state = runAdaptive(bootstrap, state, seed, threads, metrics, checkpoint);
+            boundary = run = state.run();
+        } else {
+            //Whole segments, then the partial one on its own, so the cache can extend from the boundary between them
+            boundary = Math.max(state.run(), trials - trials % SEGMENT_TRIALS);
+            state = runFixed(bootstrap, state, boundary, seed, threads, metrics, checkpoint);
+            run = Math.max(boundary, trials);
+            if (boundary < trials) {
+                runTrials(bootstrap, seed, boundary, trials - boundary, tail, threads, metrics);
+            }
+        }
+        if (cache != null) {
+            Metrics.Span span = metrics.start("resultCache", "trials");
+            cache.put(scenario, new ResultCache.Entry(boundary, state.results(), run, tail, state.needed()));
+            span.end(run);
+        }
+        fold(state.results(), tail, run - boundary);
+        report(cohort.size(), filename, new Checkpoint.State(run, state.needed(), state.results()), metrics);
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+    }
+
+    //Run this process's share of a fixed-count bootstrap into Results5.shard<index>.partial, see Shards
+    //Every shard must load the same cohort with the same settings, mergeShards checks this before combining them
+    public static void simulateShard(String filename, int index, int count) throws Exception {
+        if (precision > 0) {
+            throw new IllegalStateException("Adaptive runs decide when to stop from all trials, shard fixed-count runs only");
+        }
+        if (index < 0 || index >= count) {
+            throw new IllegalArgumentException("Shard " + index + " of " + count);
+        }
+        Metrics metrics = new Metrics();
+        Bootstrap bootstrap = new Bootstrap(patients, strata, controlVariate);
+        int segments = (trials + SEGMENT_TRIALS - 1) / SEGMENT_TRIALS;
+        List<Shards.Segment> partial = new ArrayList<>();
+        for (int g = Shards.from(segments, index, count); g < Shards.from(segments, index + 1, count); g++) {
+            int first = g * SEGMENT_TRIALS;
+            int trialCount = Math.min(SEGMENT_TRIALS, trials - first);
+            Summary[] segment = runTrials(bootstrap, seed, first, trialCount, Summary.create(summary, strata.metrics()), threads,
+                    metrics);
+            partial.add(new Shards.Segment(first, trialCount, segment));
+        }
+        Metrics.Span span = metrics.start("exportPartial", "segments");
+        Shards.write(Shards.file(filename, index), scenario(patients, seed, trials), index, count, partial);
+        span.end(partial.size());
+        metrics.write(Metrics.file(Shards.file(filename, index)));
+        System.out.println("Shard " + index + " of " + count + ": " + partial.size() + " of " + segments + " segments");
+    }
+
+    //Combine the partials of count shards into the results a single process would have written
+    public static void mergeShards(String filename, int count) throws Exception {
+        Metrics metrics = new Metrics();
+        Metrics.Span span = metrics.start("mergeShards", "shards");
+        Checkpoint.Scenario[] scenario = new Checkpoint.Scenario[1];
+        Summary[] results = Shards.merge(filename, count, scenario);
+        span.end(count);
+        int[] needed = new int[results.length];
+        Arrays.fill(needed, -1);
+        report(scenario[0].patients(), filename, new Checkpoint.State(scenario[0].trials(), needed, results), metrics);
+    }
+
+    //Percentiles of a finished bootstrap, written to filename and printed
+    private static void report(int size, String filename, Checkpoint.State state, Metrics metrics) throws Exception {
+        int count = strata.metrics();
+        Summary[] results = state.results();
+        int[] needed = state.needed();
+        int run = state.run();
+
+        //Medians and bootstrap confidence intervals, one row per metric
+        Metrics.Span span = metrics.start("percentiles", "metrics");
+        double[][] exportData = new double[count][];
+        for (int m = 0; m < count; m++) {
+            exportData[m] = (precision > 0) ? new double[4] : new double[3];
+            exportData[m][0] = results[m].median();
+            exportData[m][1] = results[m].quantile(0.025);
+            exportData[m][2] = results[m].quantile(0.975);
+            if (precision > 0) {
+                exportData[m][3] = needed[m]; //Trials column, -1 if the budget ran out first
+            }
+        }
+        span.end(count);
+        span = metrics.start("exportData", "metrics");
+        exportData(exportData, filename);
+        span.end(count);
+        metrics.write(Metrics.file(filename));
+
+        //Print results, as one block so concurrent scenarios do not interleave
+        StringWriter report = new StringWriter();
+        PrintWriter out = new PrintWriter(report);
+        out.println("Simulation Results on " + size + " patients:");
+        if (precision > 0) {
+            out.println(run + " trials, slowest metric: " + slowest(needed));
+        }
+        out.println("---------------------------------------------------");
+        if (strata.isStandard()) {
+            printStandard(out, exportData);
+        } else {
+            for (int m = 0; m < count; m++) {
+                out.printf("%s: %.4f (95%% CI: %.4f - %.4f)%n", strata.name(m), exportData[m][0], exportData[m][1], exportData[m][2]);
+            }
+            out.println("---------------------------------------------------");
+        }
+        metrics.print(out);
+        out.println("---------------------------------------------------");
+        out.flush();
+        System.out.print(report);
+    }
+
+    //Report for Strata.standard(), rows in its metric order, with the GBD figures for comparison
+    private static void printStandard(PrintWriter out, double[][] rows) {
+        double[] risk = rows[0];
+        double[] prevalence = rows[1];
+        double[] prevalenceAge1 = rows[2];
+        double[] prevalenceAge2 = rows[3];
+        double[] prevalenceAge3 = rows[4];
+        double[] avgBmi = rows[5];
+        double[] avgBmi1 = rows[6];
+        double[] avgBmi2 = rows[7];
+        double[] avgBmi3 = rows[8];
+        double[] avgObesity = rows[9];
+        double[] avgObesity1 = rows[10];
+        double[] avgObesity2 = rows[11];
+        double[] avgObesity3 = rows[12];
+
+        out.printf("Average Risk: %.4f (95%% CI: %.4f - %.4f)%n", risk[0] * 100, risk[1] * 100, risk[2] * 100);
+        out.printf("Prevalence: %.4f (95%% CI: %.4f - %.4f)%n", prevalence[0] * 100, prevalence[1] * 100, prevalence[2] * 100);
+        out.printf("Prevalence Age <25: %.4f (95%% CI: %.4f - %.4f)%n", prevalenceAge1[0] * 100, prevalenceAge1[1] * 100, prevalenceAge1[2] * 100);
+        out.printf("Prevalence Age 20-54: %.4f (95%% CI: %.4f - %.4f)%n", prevalenceAge2[0] * 100, prevalenceAge2[1] * 100, prevalenceAge2[2] * 100);
+        out.printf("Prevalence Age 55+: %.4f (95%% CI: %.4f - %.4f)%n", prevalenceAge3[0] * 100, prevalenceAge3[1] * 100, prevalenceAge3[2] * 100);
+        out.println("---------------------------------------------------");
+        out.println("GBD U.S. results for comparison:");
+        out.printf("Prevalence: %.4f (95%% CI: %.4f - %.4f)%n", 0.0046 * 100, 0.0043 * 100, 0.0050 * 100);
+        out.printf("Prevalence Age <25: %.4f (95%% CI: %.4f - %.4f)%n", 0.0007 * 100, 0.0006 * 100, 0.0008 * 100);
+        out.printf("Prevalence Age 20-54: %.4f (95%% CI: %.4f - %.4f)%n", 0.0028 * 100, 0.0024 * 100, 0.0032 * 100);
+        out.printf("Prevalence Age 55+: %.4f (95%% CI: %.4f - %.4f)%n", 0.0102 * 100, 0.0092 * 100, 0.0112 * 100);
+        out.println("---------------------------------------------------");
+        out.printf("Average BMI among cases: %.2f (95%% CI: %.2f - %.2f)%n", avgBmi[0], avgBmi[1], avgBmi[2]);
+        out.printf("Average BMI among cases Age <25: %.2f (95%% CI: %.2f - %.2f)%n", avgBmi1[0], avgBmi1[1], avgBmi1[2]);
+        out.printf("Average BMI among cases Age 20-54: %.2f (95%% CI: %.2f - %.2f)%n", avgBmi2[0], avgBmi2[1], avgBmi2[2]);
+        out.printf("Average BMI among cases Age 55+: %.2f (95%% CI: %.2f - %.2f)%n", avgBmi3[0], avgBmi3[1], avgBmi3[2]);
+        out.println("---------------------------------------------------");
+        out.printf("Obesity Prevalence among cases: %.4f (95%% CI: %.4f - %.4f)%n", avgObesity[0], avgObesity[1], avgObesity[2]);
+        out.printf("Obesity Prevalence among cases Age <25: %.4f (95%% CI: %.4f - %.4f)%n", avgObesity1[0], avgObesity1[1], avgObesity1[2]);
+        out.printf("Obesity Prevalence among cases Age 20-54: %.4f (95%% CI: %.4f - %.4f)%n", avgObesity2[0], avgObesity2[1], avgObesity2[2]);
+        out.printf("Obesity Prevalence among cases Age 55+: %.4f (95%% CI: %.4f - %.4f)%n", avgObesity3[0], avgObesity3[1], avgObesity3[2]);
+        out.println("---------------------------------------------------");
+    }
+
+    //Run batches of trials until the median and both CI bounds of every metric have converged, or maxTrials are spent
+    //All 13 metrics come from the same resample, so the run stops when the slowest one converges
+    //needed[m] is the trial count at which metric m first converged, -1 if it never did
+    private static Checkpoint.State runAdaptive(Bootstrap bootstrap, Checkpoint.State state, long seed, int threads,
+                                                Metrics metrics, Checkpoint checkpoint) throws Exception {
+        Summary[] results = state.results();
+        int[] needed = state.needed();
+        int run = state.run();
+        int open = 0;
+        for (int m : needed) {
+            if (m < 0) open++;
+        }
+        while (open > 0 && run < maxTrials) {
+            int count = Math.min(batchTrials, maxTrials - run);
+            runTrials(bootstrap, seed, run, count, results, threads, metrics);
+            run += count;
+            for (int m = 0; m < results.length; m++) {
+                if (needed[m] < 0 && converged(results[m])) {
+                    needed[m] = run;
+                    open--;
                 }
+            }
+            if (checkpoint != null) {
+                checkpoint.save(new Checkpoint.State(run, needed, results), false);
+            }
+        }
+        return new Checkpoint.State(run, needed, results);
+    }
 
-                //Count total in age groups
-                if (p.age < 25) {
-                    age1++;
-                } else if (p.age < 55) {
-                    age2++;
-                } else {
-                    age3++;
+    //Run the trials of a fixed-count run up to until in segments, with a chance to save a checkpoint after each
+    //Segments are whole trial chunks summarized on their own and folded in segment order, so a resumed run and
+    //the merge of a sharded run fold exactly the same segment summaries
+    private static Checkpoint.State runFixed(Bootstrap bootstrap, Checkpoint.State state, int until, long seed, int threads,
+                                             Metrics metrics, Checkpoint checkpoint) throws Exception {
+        int run = state.run();
+        while (run < until) {
+            int count = Math.min(SEGMENT_TRIALS, until - run);
+            Summary[] segment = runTrials(bootstrap, seed, run, count, Summary.create(summary, strata.metrics()), threads,
+                    metrics);
+            fold(state.results(), segment, count); //Per segment, like the partials of a sharded run
+            run += count;
+            if (checkpoint != null) {
+                checkpoint.save(new Checkpoint.State(run, state.needed(), state.results()), false);
+            }
+        }
+        return new Checkpoint.State(run, state.needed(), state.results());
+    }
+
+    //Merge the summaries of a later segment of trials into results, metric by metric
+    private static void fold(Summary[] results, Summary[] segment, int segmentTrials) {
+        if (segmentTrials == 0) return; //An empty sketch would still recompress the digest
+        for (int m = 0; m < results.length; m++) {
+            results[m].merge(segment[m]);
+        }
+    }
+
+    //Everything a checkpoint or cached run of this cohort's bootstrap depends on
+    private static Checkpoint.Scenario scenario(Cohort cohort, long seed, int trials) {
+        StringBuilder names = new StringBuilder();
+        for (int m = 0; m < strata.metrics(); m++) {
+            names.append(strata.name(m)).append('|');
+        }
+        Cohort.Parameters p = cohort.parameters();
+        return new Checkpoint.Scenario(seed, cohort.size(), Checkpoint.hash(cohort), p.mean(), p.k(), resampling.name(),
+                controlVariate, summary.name(), trials, precision, batchTrials, maxTrials, names.toString());
+    }
+
+    private static boolean converged(Summary s) {
+        double width = s.quantile(0.975) - s.quantile(0.025);
+        double target = precision * width;
+        return s.standardError(0.5) <= target
+                && s.standardError(0.025) <= target
+                && s.standardError(0.975) <= target;
+    }
+
+    private static String slowest(int[] needed) {
+        int slowest = 0;
+        for (int m = 0; m < needed.length; m++) {
+            if (needed[m] < 0) return strata.name(m) + " did not converge within " + maxTrials + " trials";
+            if (needed[m] > needed[slowest]) slowest = m;
+        }
+        return strata.name(slowest) + " converged after " + needed[slowest] + " trials";
+    }
+
+    //Run bootstrap trials first..first+count-1 on the worker pool and merge them into results
+    //Trial t always draws from its own stream, and trials are summarized in fixed chunks that are merged in chunk order,
+    //so results do not depend on the thread count in either summary mode
+    //Workers take slices of a chunk, small enough that every thread has work even in a 500-trial adaptive batch;
+    //the worker that finishes a chunk's last slice summarizes its trials in trial order
+    private static Summary[] runTrials(Bootstrap bootstrap, long seed, int first, int count, Summary[] results, int threads,
+                                       Metrics metrics) throws Exception {
+        Metrics.Span span = metrics.start("bootstrap", "trials");
+        int chunks = (count + TRIAL_CHUNK - 1) / TRIAL_CHUNK;
+        int slice = Math.max(1, Integer.highestOneBit(Math.min(TRIAL_CHUNK, count / (4 * threads)))); //Divides TRIAL_CHUNK
+        int slices = (count + slice - 1) / slice;
+        double[][][] values = new double[chunks][][]; //[chunk][trial][metric], while the chunk's trials run
+        int[] left = new int[chunks]; //Trials of each chunk still running
+        Summary[][] done = new Summary[chunks][]; //Chunks finished ahead of an earlier one, until it is merged
+        int[] merged = {0};
+        parallel(threads, slices, () -> new TrialScratch(bootstrap, results.length), (scratch, s) -> {
+            int from = s * slice;
+            int to = Math.min(count, from + slice);
+            int c = from / TRIAL_CHUNK;
+            double[][] chunk;
+            synchronized (done) {
+                if (values[c] == null) {
+                    int size = Math.min(count, (c + 1) * TRIAL_CHUNK) - c * TRIAL_CHUNK;
+                    values[c] = new double[size][results.length];
+                    left[c] = size;
                 }
+                chunk = values[c];
             }
-            riskResults[t] = averageRisk / (double) n;
-            prevalenceResults[t] = (double) count / (double) n;
-            age1PrevalenceResults[t] = (double) countAge1 / (double) age1;
-            age2PrevalenceResults[t] = (double) countAge2 / (double) age2;
-            age3PrevalenceResults[t] = (double) countAge3 / (double) age3;
-            bmiResults[t] = (count > 0) ? (avgBmi / (double) count) : 0.0;
-            bmi1Results[t] = (countAge1 > 0) ? (avgBmi1 / (double) countAge1) : 0.0;
-            bmi2Results[t] = (countAge2 > 0) ? (avgBmi2 / (double) countAge2) : 0.0;
-            bmi3Results[t] = (countAge3 > 0) ? (avgBmi3 / (double) countAge3) : 0.0;
-            obesityResults[t] = (count > 0) ? ((double) obesity / (double) count) : 0.0;
-            obesity1Results[t] = (countAge1 > 0) ? ((double) obesity1 / (double) countAge1) : 0.0;
-            obesity2Results[t] = (countAge2 > 0) ? ((double) obesity2 / (double) countAge2) : 0.0;
-            obesity3Results[t] = (countAge3 > 0) ? ((double) obesity3 / (double) countAge3) : 0.0;
-        }
-
-        //Calculate medians
-        Arrays.sort(riskResults);
-        Arrays.sort(prevalenceResults);
-        Arrays.sort(age1PrevalenceResults);
-        Arrays.sort(age2PrevalenceResults);
-        Arrays.sort(age3PrevalenceResults);
-        Arrays.sort(bmiResults);
-        Arrays.sort(bmi1Results);
-        Arrays.sort(bmi2Results);
-        Arrays.sort(bmi3Results);
-        Arrays.sort(obesityResults);
-        Arrays.sort(obesity1Results);
-        Arrays.sort(obesity2Results);
-        Arrays.sort(obesity3Results);
-
-        //Output results
-        double risk = (riskResults[trials / 2] + riskResults[trials / 2 + 1]) / 2.0;
-        double prevalence = (prevalenceResults[trials / 2] + prevalenceResults[trials / 2 + 1]) / 2.0;
-        double prevalenceAge1 = (age1PrevalenceResults[trials / 2] + age1PrevalenceResults[trials / 2 + 1]) / 2.0;
-        double prevalenceAge2 = (age2PrevalenceResults[trials / 2] + age2PrevalenceResults[trials / 2 + 1]) / 2.0;
-        double prevalenceAge3 = (age3PrevalenceResults[trials / 2] + age3PrevalenceResults[trials / 2 + 1]) / 2.0;
-        double avgBmi = (bmiResults[trials / 2] + bmiResults[trials / 2 + 1]) / 2.0;
-        double avgBmi1 = (bmi1Results[trials / 2] + bmi1Results[trials / 2 + 1]) / 2.0;
-        double avgBmi2 = (bmi2Results[trials / 2] + bmi2Results[trials / 2 + 1]) / 2.0;
-        double avgBmi3 = (bmi3Results[trials / 2] + bmi3Results[trials / 2 + 1]) / 2.0;
-        double avgObesity = (obesityResults[trials / 2] + obesityResults[trials / 2 + 1]) / 2.0;
-        double avgObesity1 = (obesity1Results[trials / 2] + obesity1Results[trials / 2 + 1]) / 2.0;
-        double avgObesity2 = (obesity2Results[trials / 2] + obesity2Results[trials / 2 + 1]) / 2.0;
-        double avgObesity3 = (obesity3Results[trials / 2] + obesity3Results[trials / 2 + 1]) / 2.0;
-
-        //Bootstrap confidence intervals
-        double ciLowerRisk = riskResults[(int)(trials * 0.025)];
-        double ciUpperRisk = riskResults[(int)(trials * 0.975)];
-        double ciLower = prevalenceResults[(int)(trials * 0.025)];
-        double ciUpper = prevalenceResults[(int)(trials * 0.975)];
-        double ciLowerAge1 = age1PrevalenceResults[(int)(trials * 0.025)];
-        double ciUpperAge1 = age1PrevalenceResults[(int)(trials * 0.975)];
-        double ciLowerAge2 = age2PrevalenceResults[(int)(trials * 0.025)];
-        double ciUpperAge2 = age2PrevalenceResults[(int)(trials * 0.975)];
-        double ciLowerAge3 = age3PrevalenceResults[(int)(trials * 0.025)];
-        double ciUpperAge3 = age3PrevalenceResults[(int)(trials * 0.975)];
-        double ciLowerBmi = bmiResults[(int)(trials * 0.025)];
-        double ciUpperBmi = bmiResults[(int)(trials * 0.975)];
-        double ciLowerBmi1 = bmi1Results[(int)(trials * 0.025)];
-        double ciUpperBmi1 = bmi1Results[(int)(trials * 0.975)];
-        double ciLowerBmi2 = bmi2Results[(int)(trials * 0.025)];
-        double ciUpperBmi2 = bmi2Results[(int)(trials * 0.975)];
-        double ciLowerBmi3 = bmi3Results[(int)(trials * 0.025)];
-        double ciUpperBmi3 = bmi3Results[(int)(trials * 0.975)];
-        double ciLowerObesity = obesityResults[(int)(trials * 0.025)];
-        double ciUpperObesity = obesityResults[(int)(trials * 0.975)];
-        double ciLowerObesity1 = obesity1Results[(int)(trials * 0.025)];
-        double ciUpperObesity1 = obesity1Results[(int)(trials * 0.975)];
-        double ciLowerObesity2 = obesity2Results[(int)(trials * 0.025)];
-        double ciUpperObesity2 = obesity2Results[(int)(trials * 0.975)];
-        double ciLowerObesity3 = obesity3Results[(int)(trials * 0.025)];
-        double ciUpperObesity3 = obesity3Results[(int)(trials * 0.975)];
-
-        //Export Setup
-        double[][] exportData = new double[13][3];
-        exportData[0][0] = risk;
-        exportData[0][1] = ciLowerRisk;
-        exportData[0][2] = ciUpperRisk;
-        exportData[1][0] = prevalence;
-        exportData[1][1] = ciLower;
-        exportData[1][2] = ciUpper;
-        exportData[2][0] = prevalenceAge1;
-        exportData[2][1] = ciLowerAge1;
-        exportData[2][2] = ciUpperAge1;
-        exportData[3][0] = prevalenceAge2;
-        exportData[3][1] = ciLowerAge2;
-        exportData[3][2] = ciUpperAge2;
-        exportData[4][0] = prevalenceAge3;
-        exportData[4][1] = ciLowerAge3;
-        exportData[4][2] = ciUpperAge3;
-        exportData[5][0] = avgBmi;
-        exportData[5][1] = ciLowerBmi;
-        exportData[5][2] = ciUpperBmi;
-        exportData[6][0] = avgBmi1;
-        exportData[6][1] = ciLowerBmi1;
-        exportData[6][2] = ciUpperBmi1;
-        exportData[7][0] = avgBmi2;
-        exportData[7][1] = ciLowerBmi2;
-        exportData[7][2] = ciUpperBmi2;
-        exportData[8][0] = avgBmi3;
-        exportData[8][1] = ciLowerBmi3;
-        exportData[8][2] = ciUpperBmi3;
-        exportData[9][0] = avgObesity;
-        exportData[9][1] = ciLowerObesity;
-        exportData[9][2] = ciUpperObesity;
-        exportData[10][0] = avgObesity1;
-        exportData[10][1] = ciLowerObesity1;
-        exportData[10][2] = ciUpperObesity1;
-        exportData[11][0] = avgObesity2;
-        exportData[11][1] = ciLowerObesity2;
-        exportData[11][2] = ciUpperObesity2;
-        exportData[12][0] = avgObesity3;
-        exportData[12][1] = ciLowerObesity3;
-        exportData[12][2] = ciUpperObesity3;
-        exportData(exportData, filename);
+            Metrics.TrialChunkEvent event = new Metrics.TrialChunkEvent();
+            event.begin();
+            for (int t = from; t < to; t++) {
+                bootstrap.trial(RandomStreams.stream(seed, RandomStreams.BOOTSTRAP, first + t), resampling, scratch.acc,
+                        chunk[t - c * TRIAL_CHUNK]);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.first = first + from;
+                event.trials = to - from;
+                event.commit();
+            }
+            synchronized (done) {
+                left[c] -= to - from;
+                if (left[c] > 0) return;
+                values[c] = null;
+            }
+            Summary[] part = Summary.create(summary, results.length);
+            for (double[] trial : chunk) {
+                for (int m = 0; m < part.length; m++) {
+                    part[m].add(trial[m]);
+                }
+            }
+            synchronized (done) {
+                done[c] = part;
+                while (merged[0] < chunks && done[merged[0]] != null) {
+                    for (int m = 0; m < results.length; m++) {
+                        results[m].merge(done[merged[0]][m]);
+                    }
+                    done[merged[0]++] = null;
+                }
+            }
+        });
+        span.end(count);
+        return results;
+    }
+
+    //Per-worker state for runTrials
+    private static class TrialScratch {
+        private final Bootstrap.Accumulator acc;
+        private final double[] values;
+
+        private TrialScratch(Bootstrap bootstrap, int metrics) {
+            this.acc = bootstrap.accumulator();
+            this.values = new double[metrics];
+        }
+    }
 
-        //Print results
-        System.out.println("Simulation Results on " + n + " patients:");
-        System.out.println("---------------------------------------------------");
-        System.out.printf("Average Risk: %.4f (95%% CI: %.4f - %.4f)%n", risk * 100, ciLowerRisk * 100, ciUpperRisk * 100);
-        System.out.printf("Prevalence: %.4f (95%% CI: %.4f - %.4f)%n", prevalence * 100, ciLower * 100, ciUpper * 100);
-        System.out.printf("Prevalence Age <25: %.4f (95%% CI: %.4f - %.4f)%n", prevalenceAge1 * 100, ciLowerAge1 * 100, ciUpperAge1 * 100);
-        System.out.printf("Prevalence Age 20-54: %.4f (95%% CI: %.4f - %.4f)%n", prevalenceAge2 * 100, ciLowerAge2 * 100, ciUpperAge2 * 100);
-        System.out.printf("Prevalence Age 55+: %.4f (95%% CI: %.4f - %.4f)%n", prevalenceAge3 * 100, ciLowerAge3 * 100, ciUpperAge3 * 100);
-        System.out.println("---------------------------------------------------");
-        System.out.println("GBD U.S. results for comparison:");
-        System.out.printf("Prevalence: %.4f (95%% CI: %.4f - %.4f)%n", 0.0046 * 100, 0.0043 * 100, 0.0050 * 100);
-        System.out.printf("Prevalence Age <25: %.4f (95%% CI: %.4f - %.4f)%n", 0.0007 * 100, 0.0006 * 100, 0.0008 * 100);
-        System.out.printf("Prevalence Age 20-54: %.4f (95%% CI: %.4f - %.4f)%n", 0.0028 * 100, 0.0024 * 100, 0.0032 * 100);
-        System.out.printf("Prevalence Age 55+: %.4f (95%% CI: %.4f - %.4f)%n", 0.0102 * 100, 0.0092 * 100, 0.0112 * 100);
-        System.out.println("---------------------------------------------------");
-        System.out.printf("Average BMI among cases: %.2f (95%% CI: %.2f - %.2f)%n", avgBmi, ciLowerBmi, ciUpperBmi);
-        System.out.printf("Average BMI among cases Age <25: %.2f (95%% CI: %.2f - %.2f)%n", avgBmi1, ciLowerBmi1, ciUpperBmi1);
-        System.out.printf("Average BMI among cases Age 20-54: %.2f (95%% CI: %.2f - %.2f)%n", avgBmi2, ciLowerBmi2, ciUpperBmi2);
-        System.out.printf("Average BMI among cases Age 55+: %.2f (95%% CI: %.2f - %.2f)%n", avgBmi3, ciLowerBmi3, ciUpperBmi3);
-        System.out.println("---------------------------------------------------");
-        System.out.printf("Obesity Prevalence among cases: %.4f (95%% CI: %.4f - %.4f)%n", avgObesity, ciLowerObesity, ciUpperObesity);
-        System.out.printf("Obesity Prevalence among cases Age <25: %.4f (95%% CI: %.4f - %.4f)%n", avgObesity1, ciLowerObesity1, ciUpperObesity1);
-        System.out.printf("Obesity Prevalence among cases Age 20-54: %.4f (95%% CI: %.4f - %.4f)%n", avgObesity2, ciLowerObesity2, ciUpperObesity2);
-        System.out.printf("Obesity Prevalence among cases Age 55+: %.4f (95%% CI: %.4f - %.4f)%n", avgObesity3, ciLowerObesity3, ciUpperObesity3);
-        System.out.println("---------------------------------------------------");
+    //Run tasks 0..count-1 on a fixed pool of worker threads
+    //Each worker creates its own scratch state once and reuses it for every task it picks up
+    private static <S> void parallel(int count, Supplier<S> scratch, Task<S> task) throws Exception {
+        parallel(threads, count, scratch, task);
+    }
+
+    private static <S> void parallel(int threads, int count, Supplier<S> scratch, Task<S> task) throws Exception {
+        int workers = Math.max(1, Math.min(threads, count));
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        AtomicInteger next = new AtomicInteger();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                futures.add(pool.submit(() -> {
+                    S state = scratch.get();
+                    for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                        task.run(state, i);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private interface Task<S> {
+        void run(S scratch, int index) throws Exception;
     }
 
     public static double linearPredictor(Patient p, double k) {
-        double risk = 0.0;
+        features(p, k);
 
-        ArrayList<Boolean> testing = new ArrayList<>();
+        //Sum the enabled features
+        return RiskKernel.sum(p.features, featureMask);
+    }
 
+    //Fill p.features, this takes the patient's smoking draw
+    private static void features(Patient p, double k) {
         //Baseline risk
         double r = baseline(p);
         //Index 0
-        p.features.add(r);
-        testing.add(true);
+        p.features[0] = r;
 
         //Genetics contribution
         double g = genetics(p);
         //Index 1
-        p.features.add(g);
-        testing.add(true);
+        p.features[1] = g;
 
         //Smoking-genetics interaction
         double s = smoking(p);
         double sg = sgInteraction(p, s, g);
         //Index 2
-        p.features.add(sg);
-        testing.add(true); 
+        p.features[2] = sg;
 
         //Age contribution
         double a = age(p);
         //Index 3
-        p.features.add(a);
-        testing.add(true);
+        p.features[3] = a;
 
         //BMI contribution
         double b = bmi(p, k);
         //Index 4
-        p.features.add(b);
-        testing.add(true);
-
-        //Sum all features
-        int i = 0;
-        for (double feature : p.features) {
-            if (testing.get(i)) {
-                risk += feature;
-            }
-            i++;
-        }
-
-        return risk;
+        p.features[4] = b;
     }
 
     public static double sigmoid(double z) {
@@ -360,13 +866,13 @@ public class Algo {
 
     //Genetics contribution
     public static double genetics(Patient p) {
-        double g = Math.log((p.alleleCount == 2) ? p.homoOR : (p.alleleCount == 1) ? p.heteroOR : 1.0);
+        double g = (p.alleleCount == 2) ? p.logHomoOR : (p.alleleCount == 1) ? p.logHeteroOR : 0.0;
         return g;
     }
 
     //Smoking-Genetics interaction
     public static double sgInteraction(Patient p, double s, double g) {
-        double sg = Math.log((p.alleleCount == 2) ? p.interaction_homoOR : (p.alleleCount == 1) ? p.interaction_heteroOR : 1.0); //Interaction feature
+        double sg = (p.alleleCount == 2) ? p.logInteraction_homoOR : (p.alleleCount == 1) ? p.logInteraction_heteroOR : 0.0; //Interaction feature
 
         if (s > 0 && g > 0) {
             return sg;
@@ -378,9 +884,9 @@ public class Algo {
     //Smoking contribution
     public static double smoking(Patient p) {
         double smokingPrevalence = smokingPrevalence(p);
-        double s = Math.log(p.smokingOR);
+        double s = p.logSmokingOR;
 
-        double chance = rng.nextDouble();
+        double chance = p.random.nextDouble();
         if (chance < smokingPrevalence) {
             //Smoker
             return s;
@@ -403,12 +909,16 @@ public class Algo {
 
     //Age contribution
     public static double age(Patient p) {
+        return (p.age < AGE_TERMS.length) ? AGE_TERMS[p.age] : ageTerm(p.age);
+    }
+
+    public static double ageTerm(int age) {
         double minAge = 15.0;
         double maxAge = 80.0;
         double ageRange = maxAge - minAge;
 
         //Normalize age from 0 to 1
-        double fraction = (p.age - minAge) / ageRange;
+        double fraction = (age - minAge) / ageRange;
         fraction = Math.max(0.0, Math.min(fraction, 1.0));
 
         //Logistic curve parameters for young-age protection
@@ -428,93 +938,197 @@ public class Algo {
 
     //BMI contribution
     public static double bmi(Patient p, double k) {
-        double bmiZ = p.normalizeBMI(); //Z-score
+        if (p.bmiTable == null || p.bmiTableK != k) {
+            p.bmiTable = bmiLogORs(k);
+            p.bmiTableK = k;
+        }
+        double bmiZ = (p.bmiRaw - 27.0) / 5.0; //Z-score
+        double logOR = (p.age < p.bmiTable.length) ? p.bmiTable[p.age] : bmiLogOR(p.age, k);
+        return logOR * bmiZ;
+    }
+
+    public static double bmiTerm(int age, double bmiRaw, double k) {
+        double bmiZ = (bmiRaw - 27.0) / 5.0; //Z-score
+        double b = bmiLogOR(age, k) * bmiZ;
+        return b;
+    }
+
+    //Log OR per BMI standard deviation at a given age
+    public static double bmiLogOR(int age, double k) {
         double ORmax = 1.26; //Peak OR at age 15
-        double a = Math.exp(k * Math.max(p.age - 15, 0)) ; //Decay factor with age
+        double a = Math.exp(k * Math.max(age - 15, 0)) ; //Decay factor with age
 
         double effectiveOR = Math.max(1.0 + (ORmax - 1.0) * a, 1.01); //Ensure OR does not go below CI
-        double b = Math.log(effectiveOR) * bmiZ;
-        return b;
+        return Math.log(effectiveOR);
+    }
+
+    //bmiLogOR for every generated age
+    private static double[] bmiLogORs(double k) {
+        double[] table = new double[AGES];
+        for (int age = 0; age < AGES; age++) {
+            table[age] = bmiLogOR(age, k);
+        }
+        return table;
+    }
+
+    //Risk allele copies from a uniform draw: 2 with probability 0.08, 1 with 0.37, 0 with 0.55
+    //With importance sampling every copy is carrierTilt times more likely, alleleWeight undoes it
+    private static int alleleCount(double u) {
+        if (carrierTilt == 1.0) {
+            return u < 0.08 ? 2 : (u < 0.45 ? 1 : 0);
+        }
+        double norm = alleleNorm();
+        double homo = 0.08 * carrierTilt * carrierTilt / norm;
+        double hetero = 0.37 * carrierTilt / norm;
+        return u < homo ? 2 : (u < homo + hetero ? 1 : 0);
+    }
+
+    //Importance weight of a patient with this many risk alleles, population share / sampling share
+    private static double alleleWeight(int alleleCount) {
+        if (carrierTilt == 1.0) return 1.0;
+        return alleleNorm() / Math.pow(carrierTilt, alleleCount);
+    }
+
+    private static double alleleNorm() {
+        return 0.55 + 0.37 * carrierTilt + 0.08 * carrierTilt * carrierTilt;
+    }
+
+    //Mean and SD of a log OR whose 95% CI is [lower, upper]
+    private static double[] logNormal(double lower, double upper) {
+        double mean = (Math.log(upper) + Math.log(lower)) / 2;
+        double sd = ((Math.log(upper) - Math.log(lower)) / 2) / 1.96;
+        return new double[] {mean, sd};
+    }
+
+    private static double[] ageTerms() {
+        double[] table = new double[AGES];
+        for (int age = 0; age < AGES; age++) {
+            table[age] = ageTerm(age);
+        }
+        return table;
+    }
+
+    //BMI from its standard normal draw, the mean only applies to patients under 25
+    public static double bmiRaw(int age, double draw, int mean) {
+        if (age < 25) {
+            return Math.min(Math.max(draw * 5.0 + mean, 15), 50); //Mean 27, SD 5
+        } else {
+            return Math.min(Math.max(draw * 5.0 + 27.0, 15), 50); //Mean 27, SD 5
+        }
     }
 
     //Nested Patient class
+    //Scratch record for the per-patient draws during generation, stored into a Cohort afterwards
     private static class Patient {
         //Patient attributes
-        private String id;
-        private ArrayList<Double> features;
-        private double riskAssessment;
+        private RandomGenerator random; //Stream this patient's draws come from
+        private double[] features = new double[RiskKernel.FEATURES];
         private int age;
+        private double bmiDraw; //Standard normal draw behind bmiRaw
         private double bmiRaw;
         private int alleleCount;
-        private int hasRA;
         private double baseline;
-        private double smokingOR;
-        private double heteroOR;
-        private double homoOR;
-        private double interaction_heteroOR;
-        private double interaction_homoOR;
-
-        //Constructor
-        public Patient(int i, int mean) {
-            this.id = "P" + i;
-            double chance = rng.nextDouble();
+        private double logSmokingOR;
+        private double logHeteroOR;
+        private double logHomoOR;
+        private double logInteraction_heteroOR;
+        private double logInteraction_homoOR;
+        private double[] bmiTable; //bmiLogORs(bmiTableK), rebuilt when k changes
+        private double bmiTableK;
+        private RiskKernel kernel; //Column buffers for one generation block, allocated on first use
+        private CounterRandom counter; //PHILOX source, rewound to each patient's stream
+        private final long seed; //Master seed of the population
+
+        private Patient() {
+            this(Algo.seed);
+        }
+
+        private Patient(long seed) {
+            this.seed = seed;
+        }
+
+        //Start the draws of patient i
+        //PHILOX jumps to counter stream i, SPLITMIX starts the block stream at the block's first patient and
+        //otherwise continues it, so it needs the patients of a block in order
+        private void seek(long i) {
+            if (generator == RandomStreams.Generator.PHILOX) {
+                if (counter == null) {
+                    counter = new CounterRandom(seed, RandomStreams.GENERATION);
+                }
+                random = counter.seek(i);
+            } else if (random == null || random == counter || i % BLOCK == 0) {
+                random = RandomStreams.stream(seed, RandomStreams.GENERATION, i / BLOCK);
+            }
+        }
+
+        //Draw a new patient into this record
+        public void sample(int mean) {
+            double chance = random.nextDouble();
             //Simulate age
             if (chance < 0.18) {
-                this.age = rng.nextInt(15); //Age 0-14
+                this.age = random.nextInt(15); //Age 0-14
             } else if (chance < 0.94) {
-                this.age = rng.nextInt(66) + 15; //Age 15-80
+                this.age = random.nextInt(66) + 15; //Age 15-80
             } else {
-                this.age = rng.nextInt(19) + 81; //Age 81-99
+                this.age = random.nextInt(19) + 81; //Age 81-99
             }
-            if (age < 25) {
-                this.bmiRaw = Math.min(Math.max(rng.nextGaussian() * 5.0 + mean, 15), 50); //Mean 27, SD 5
-            } else {
-                this.bmiRaw = Math.min(Math.max(rng.nextGaussian() * 5.0 + 27.0, 15), 50); //Mean 27, SD 5
-            }
-            this.features = new ArrayList<>();
-        }
-
-        public double normalizeBMI() {
-            return (bmiRaw - 27.0) / 5.0;
+            this.bmiDraw = random.nextGaussian();
+            this.bmiRaw = bmiRaw(age, bmiDraw, mean);
         }
 
         public void setORS() {
             double dist = 0.0;
 
             //Baseline
-            dist = rng.nextGaussian();
-            this.baseline = Math.exp(dist * (((Math.log(0.0050) - Math.log(0.0043)) / 2) / 1.96) + (Math.log(0.0050) + Math.log(0.0043)) / 2);
+            dist = random.nextGaussian();
+            this.baseline = Math.exp(dist * BASELINE[1] + BASELINE[0]);
 
-            //Smoking OR
-            dist = rng.nextGaussian();
-            this.smokingOR = Math.max(Math.exp(dist * (((Math.log(1.55) - Math.log(1.32)) / 2) / 1.96) + (Math.log(1.55) + Math.log(1.32)) / 2), 1.0);
+            //Smoking OR, kept as log OR (never below OR 1.0)
+            dist = random.nextGaussian();
+            this.logSmokingOR = Math.max(dist * SMOKING_OR[1] + SMOKING_OR[0], 0.0);
 
             //Genetics ORs
-            dist = rng.nextGaussian();
-            this.heteroOR = Math.max(Math.exp(dist * (((Math.log(2.5) - Math.log(1.5)) / 2) / 1.96) + (Math.log(2.5) + Math.log(1.5)) / 2), 1.0);
-            dist = rng.nextGaussian();
-            this.homoOR = Math.max(Math.exp(dist * (((Math.log(6.0) - Math.log(5.0)) / 2) / 1.96) + (Math.log(6.0) + Math.log(5.0)) / 2), 1.0);
+            dist = random.nextGaussian();
+            this.logHeteroOR = Math.max(dist * HETERO_OR[1] + HETERO_OR[0], 0.0);
+            dist = random.nextGaussian();
+            this.logHomoOR = Math.max(dist * HOMO_OR[1] + HOMO_OR[0], 0.0);
 
             //Interaction ORs
-            dist = rng.nextGaussian();
-            this.interaction_heteroOR = Math.max(Math.exp(dist * (((Math.log(13.1) - Math.log(4.2)) / 2) / 1.96) + (Math.log(13.1) + Math.log(4.2)) / 2), 1.0);
-            dist = rng.nextGaussian();
-            this.interaction_homoOR = Math.max(Math.exp(dist * (((Math.log(34.2) - Math.log(7.2)) / 2) / 1.96) + (Math.log(34.2) + Math.log(7.2)) / 2), 1.0);
+            dist = random.nextGaussian();
+            this.logInteraction_heteroOR = Math.max(dist * INTERACTION_HETERO_OR[1] + INTERACTION_HETERO_OR[0], 0.0);
+            dist = random.nextGaussian();
+            this.logInteraction_homoOR = Math.max(dist * INTERACTION_HOMO_OR[1] + INTERACTION_HOMO_OR[0], 0.0);
 
             //Default values
-            dist = rng.nextDouble();
-            this.alleleCount = dist < 0.08 ? 2 : (dist < 0.45 ? 1 : 0);
-            this.hasRA = 0;
+            dist = random.nextDouble();
+            this.alleleCount = alleleCount(dist);
         }
     }
 
-    public static void exportPatients(ArrayList<Patient> patients, String filename) throws Exception {
-        try (PrintWriter pw = new PrintWriter(filename)) {
-            pw.println("id,age,bmi,risk,hasRA");
-            for (Patient p : patients) {
-                pw.println(p.id + "," + p.age + "," + p.bmiRaw + "," + p.riskAssessment + ',' + p.hasRA);
+    //Writes the binary format for *.cohort files, CSV otherwise
+    public static void exportPatients(Cohort patients, String filename) throws Exception {
+        Metrics.Span span = Metrics.GLOBAL.start("exportPatients", "patients");
+        writePatients(patients, filename);
+        span.end(patients.size());
+    }
+
+    private static void writePatients(Cohort patients, String filename) throws Exception {
+        if (filename.endsWith(BinaryCohort.EXTENSION)) {
+            try {
+                BinaryCohort.write(patients, filename);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        try (CohortWriter out = new CohortWriter(filename, patients.isWeighted())) {
+            StringBuilder sb = new StringBuilder();
+            for (int from = 0; from < patients.size(); from += BLOCK) {
+                int to = Math.min(patients.size(), from + BLOCK);
+                sb.setLength(0);
+                CohortWriter.format(patients, from, to, from, sb);
+                out.write(sb);
             }
-            pw.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -524,13 +1138,72 @@ public class Algo {
         int n = data.length;
 
         try (PrintWriter pw = new PrintWriter(filename)) {
-            pw.println("mean,lower,upper"); //Header
+            boolean withTrials = n > 0 && data[0].length > 3;
+            pw.println(withTrials ? "mean,lower,upper,trials" : "mean,lower,upper"); //Header
             for (int i = 0; i < n; i++) {
-                pw.println(data[i][0] + "," + data[i][1] + ", " + data[i][2]);
+                if (withTrials) {
+                    pw.println(data[i][0] + "," + data[i][1] + ", " + data[i][2] + "," + (int) data[i][3]);
+                } else {
+                    pw.println(data[i][0] + "," + data[i][1] + ", " + data[i][2]);
+                }
             }
             pw.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    //Entry points for the JMH module in Benchmarks/
+    //Benchmarks must live in a named package and cannot import default-package classes, so they call these
+    //through method handles, engine types are passed as Object
+    public static final class Bench {
+
+        private Bench() {
+        }
+
+        //Patient construction plus its draws and ORs
+        public static Object patient(long index) {
+            Patient p = new Patient();
+            p.seek(index);
+            p.sample(27);
+            p.setORS();
+            return p;
+        }
+
+        public static double linearPredictor(Object patient, double k) {
+            return Algo.linearPredictor((Patient) patient, k);
+        }
+
+        //Generated cohort of the given size
+        public static Object cohort(int size) throws Exception {
+            n = size;
+            return generate(27, decayRate, WritableCohort.create(storage, n, carrierTilt != 1.0));
+        }
+
+        public static Object bootstrap(Object cohort) {
+            return new Bootstrap((Cohort) cohort, strata, controlVariate);
+        }
+
+        public static Object trialScratch(Object bootstrap) {
+            return new TrialScratch((Bootstrap) bootstrap, strata.metrics());
+        }
+
+        //One bootstrap trial, returns its prevalence
+        public static double trial(Object bootstrap, Object scratch, long t) {
+            TrialScratch s = (TrialScratch) scratch;
+            ((Bootstrap) bootstrap).trial(RandomStreams.stream(seed, RandomStreams.BOOTSTRAP, t), resampling, s.acc, s.values);
+            return s.values[1];
+        }
+
+        //Load a dataset, returns the patient count; benchmarks record no phases
+        public static int readPatients(String filename) throws Exception {
+            patients = load(filename, threads, Metrics.OFF);
+            n = patients.size();
+            return n;
+        }
+
+        public static void exportPatients(Object cohort, String filename) throws Exception {
+            writePatients((Cohort) cohort, filename);
+        }
+    }
 }
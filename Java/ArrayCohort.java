@@ -0,0 +1,106 @@
+//Columnar (structure-of-arrays) patient population on the heap
+//One primitive array per attribute instead of one Patient object per person
+class ArrayCohort implements WritableCohort {
+
+    private int size;
+    private Parameters parameters = Parameters.UNKNOWN;
+    private int[] age;
+    private double[] bmiRaw;
+    private double[] risk;
+    private byte[] hasRA;
+    private byte[] alleleCount;
+    private double[] weight; //Only kept for importance-sampled cohorts
+
+    public ArrayCohort(int capacity) {
+        this(capacity, false);
+    }
+
+    public ArrayCohort(int capacity, boolean weighted) {
+        this.age = new int[capacity];
+        this.bmiRaw = new double[capacity];
+        this.risk = new double[capacity];
+        this.hasRA = new byte[capacity];
+        this.alleleCount = new byte[capacity];
+        if (weighted) {
+            this.weight = new double[capacity];
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Parameters parameters() {
+        return parameters;
+    }
+
+    public void setParameters(Parameters parameters) {
+        this.parameters = parameters;
+    }
+
+    public int capacity() {
+        return age.length;
+    }
+
+    @Override
+    public int age(int i) {
+        return age[i];
+    }
+
+    @Override
+    public double bmi(int i) {
+        return bmiRaw[i];
+    }
+
+    @Override
+    public double risk(int i) {
+        return risk[i];
+    }
+
+    @Override
+    public int hasRA(int i) {
+        return hasRA[i];
+    }
+
+    @Override
+    public int alleleCount(int i) {
+        return alleleCount[i];
+    }
+
+    @Override
+    public double weight(int i) {
+        return (weight != null) ? weight[i] : 1.0;
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weight != null;
+    }
+
+    public void setWeight(int i, double weight) {
+        this.weight[i] = weight;
+    }
+
+    public void setRisk(int i, double risk, int hasRA) {
+        this.risk[i] = risk;
+        this.hasRA[i] = (byte) hasRA;
+    }
+
+    public void set(int i, int age, double bmiRaw, double risk, int hasRA, int alleleCount) {
+        this.age[i] = age;
+        this.bmiRaw[i] = bmiRaw;
+        this.risk[i] = risk;
+        this.hasRA[i] = (byte) hasRA;
+        this.alleleCount[i] = (byte) alleleCount;
+    }
+
+    //Mark the first n slots of a pre-sized cohort as filled
+    public void setSize(int n) {
+        if (n > age.length) {
+            throw new IllegalArgumentException("Size " + n + " exceeds capacity " + age.length);
+        }
+        this.size = n;
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+//Versioned binary columnar cohort file, opened as a read-only memory-mapped Cohort
+//Columns are read straight from the mapping, nothing is copied onto the heap
+//
+//Layout, little-endian:
+//  0  magic "RACOHORT"
+//  8  int version, int column count
+//     Version 2 added the weight column, only weighted files are written as 2, so readers that would skip it reject them
+//  16 long n, long seed, double mean, double k
+//  48 column table, 32 bytes per column: name (16 bytes, zero padded), int type, int unused, long offset
+//  Column data follows, every column starts on a 64-byte boundary
+//OffHeapCohort.mapped writes this layout in place, so a cohort generated into a mapped file opens here directly
+class BinaryCohort implements Cohort {
+
+    public static final String EXTENSION = ".cohort";
+    private static final byte[] MAGIC = "RACOHORT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int UNWEIGHTED_VERSION = 1; //Version of files without the weight column
+    static final int SIZE = 16; //Header position of n
+    static final int PARAMETERS = 24; //Header position of seed, mean and k
+    private static final int TABLE = 48;
+    private static final int ENTRY = 32;
+
+    //Column types, by element size
+    private static final int INT8 = 1;
+    private static final int INT32 = 4;
+    private static final int FLOAT64 = 8;
+
+    private static final String[] NAMES = {"age", "bmi", "risk", "hasRA", "alleleCount", "weight"};
+    static final int[] TYPES = {INT32, FLOAT64, FLOAT64, INT8, INT8, FLOAT64}; //Element size of each column
+    static final int REQUIRED = 5; //Columns every file has, weight is only written for weighted cohorts
+
+    private static final int PAGE_SHIFT = 27; //Elements per mapping, keeps every mapping under 2 GB
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    private final int size;
+    private final Parameters parameters;
+    private final IntBuffer[] age;
+    private final DoubleBuffer[] bmiRaw;
+    private final DoubleBuffer[] risk;
+    private final ByteBuffer[] hasRA;
+    private final ByteBuffer[] alleleCount;
+    private final DoubleBuffer[] weight; //null when the file has no weight column
+
+    private BinaryCohort(FileChannel channel, String filename) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TABLE).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        header.flip();
+        if (!isBinary(header)) {
+            throw new IOException(filename + " is not a binary cohort file");
+        }
+        int version = header.getInt(8);
+        if (version > VERSION) {
+            throw new IOException(filename + " has cohort format version " + version + ", this build reads up to " + VERSION);
+        }
+        int columns = header.getInt(12);
+        long n = header.getLong(16);
+        if (n < 0 || n > Integer.MAX_VALUE) {
+            throw new IOException(filename + " has an invalid patient count: " + n);
+        }
+        this.size = (int) n;
+        this.parameters = new Parameters(header.getLong(24), header.getDouble(32), header.getDouble(40));
+
+        ByteBuffer table = ByteBuffer.allocate(columns * ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(table, TABLE);
+        table.flip();
+        long[] offsets = new long[NAMES.length];
+        java.util.Arrays.fill(offsets, -1);
+        for (int c = 0; c < columns; c++) {
+            byte[] name = new byte[16];
+            table.get(c * ENTRY, name);
+            String column = new String(name, StandardCharsets.US_ASCII).trim();
+            int type = table.getInt(c * ENTRY + 16);
+            long offset = table.getLong(c * ENTRY + 24);
+            for (int k = 0; k < NAMES.length; k++) {
+                if (NAMES[k].equals(column)) {
+                    if (type != TYPES[k]) {
+                        throw new IOException(filename + ": column " + column + " has type " + type + ", expected " + TYPES[k]);
+                    }
+                    offsets[k] = offset;
+                }
+            }
+        }
+        for (int k = 0; k < ((version > UNWEIGHTED_VERSION) ? NAMES.length : REQUIRED); k++) {
+            if (offsets[k] < 0) {
+                throw new IOException(filename + " has no " + NAMES[k] + " column");
+            }
+        }
+
+        ByteBuffer[] pages;
+        pages = map(channel, offsets[0], INT32);
+        this.age = new IntBuffer[pages.length];
+        for (int p = 0; p < pages.length; p++) age[p] = pages[p].asIntBuffer();
+        pages = map(channel, offsets[1], FLOAT64);
+        this.bmiRaw = new DoubleBuffer[pages.length];
+        for (int p = 0; p < pages.length; p++) bmiRaw[p] = pages[p].asDoubleBuffer();
+        pages = map(channel, offsets[2], FLOAT64);
+        this.risk = new DoubleBuffer[pages.length];
+        for (int p = 0; p < pages.length; p++) risk[p] = pages[p].asDoubleBuffer();
+        this.hasRA = map(channel, offsets[3], INT8);
+        this.alleleCount = map(channel, offsets[4], INT8);
+        if (offsets[5] >= 0) {
+            pages = map(channel, offsets[5], FLOAT64);
+            this.weight = new DoubleBuffer[pages.length];
+            for (int p = 0; p < pages.length; p++) weight[p] = pages[p].asDoubleBuffer();
+        } else {
+            this.weight = null;
+        }
+    }
+
+    public static BinaryCohort open(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            return new BinaryCohort(channel, filename); //Mappings stay valid after the channel is closed
+        }
+    }
+
+    //True when the file starts with the binary cohort magic
+    public static boolean isBinary(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+            channel.read(header, 0);
+            header.flip();
+            return isBinary(header);
+        }
+    }
+
+    private static boolean isBinary(ByteBuffer header) {
+        if (header.remaining() < MAGIC.length) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    private ByteBuffer[] map(FileChannel channel, long offset, int width) throws IOException {
+        int pages = Math.max(1, (int) (((long) size + PAGE_MASK) >>> PAGE_SHIFT));
+        ByteBuffer[] buffers = new ByteBuffer[pages];
+        for (int p = 0; p < pages; p++) {
+            long first = (long) p << PAGE_SHIFT;
+            long count = Math.min((long) size - first, 1L << PAGE_SHIFT);
+            buffers[p] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * width, Math.max(0, count) * width)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return buffers;
+    }
+
+    //Start of each of the first columns columns in a file of n patients, offsets[0] is also the header length
+    static long[] offsets(long n, int columns) {
+        long[] offsets = new long[columns + 1];
+        long position = align(TABLE + (long) columns * ENTRY);
+        for (int c = 0; c < columns; c++) {
+            offsets[c] = position;
+            offsets[columns] = position + n * TYPES[c]; //File length, after the last column
+            position = align(offsets[columns]);
+        }
+        return offsets;
+    }
+
+    //Header and column table of a file of n patients, written into header from position 0
+    static void header(ByteBuffer header, Parameters parameters, long n, long[] offsets) {
+        int columns = offsets.length - 1;
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.put(0, MAGIC).putInt(8, (columns > REQUIRED) ? VERSION : UNWEIGHTED_VERSION).putInt(12, columns)
+                .putLong(SIZE, n);
+        header.putLong(PARAMETERS, parameters.seed()).putDouble(PARAMETERS + 8, parameters.mean())
+                .putDouble(PARAMETERS + 16, parameters.k());
+        for (int c = 0; c < columns; c++) {
+            byte[] name = java.util.Arrays.copyOf(NAMES[c].getBytes(StandardCharsets.US_ASCII), 16);
+            header.put(TABLE + c * ENTRY, name);
+            header.putInt(TABLE + c * ENTRY + 16, TYPES[c]);
+            header.putLong(TABLE + c * ENTRY + 24, offsets[c]);
+        }
+    }
+
+    //Write any cohort in this format
+    public static void write(Cohort patients, String filename) throws IOException {
+        int n = patients.size();
+        int columns = patients.isWeighted() ? NAMES.length : REQUIRED;
+        long[] offsets = offsets(n, columns);
+
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate((int) offsets[0]);
+            header(header, patients.parameters(), n, offsets);
+            writeFully(channel, header, 0);
+
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            for (int c = 0; c < columns; c++) {
+                long pos = offsets[c];
+                buf.clear();
+                for (int i = 0; i < n; i++) {
+                    if (buf.remaining() < FLOAT64) {
+                        buf.flip();
+                        pos += writeFully(channel, buf, pos);
+                        buf.clear();
+                    }
+                    switch (c) {
+                        case 0 -> buf.putInt(patients.age(i));
+                        case 1 -> buf.putDouble(patients.bmi(i));
+                        case 2 -> buf.putDouble(patients.risk(i));
+                        case 3 -> buf.put((byte) patients.hasRA(i));
+                        case 4 -> buf.put((byte) patients.alleleCount(i));
+                        default -> buf.putDouble(patients.weight(i));
+                    }
+                }
+                buf.flip();
+                writeFully(channel, buf, pos);
+            }
+        }
+    }
+
+    private static long align(long position) {
+        return (position + 63) & ~63L;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        int written = 0;
+        while (buf.hasRemaining()) {
+            written += channel.write(buf, pos + written);
+        }
+        return written;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int age(int i) {
+        return age[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public double bmi(int i) {
+        return bmiRaw[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public double risk(int i) {
+        return risk[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public int hasRA(int i) {
+        return hasRA[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public int alleleCount(int i) {
+        return alleleCount[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public double weight(int i) {
+        return (weight != null) ? weight[i >>> PAGE_SHIFT].get(i & PAGE_MASK) : 1.0;
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weight != null;
+    }
+
+    @Override
+    public Parameters parameters() {
+        return parameters;
+    }
+}
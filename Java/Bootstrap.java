@@ -0,0 +1,227 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+//Bootstrap resampling on sufficient statistics
+//A trial never builds the resampled population, it only draws how often each patient is picked
+//and adds the weighted columns straight into the per-cell accumulators of a Strata layout
+//
+//Variance reduction for the rare-case metrics:
+//  STRATIFIED resampling keeps the cohort's size of every age band x allele count stratum in every trial,
+//  only of every age band when the cohort has no allele counts (CSV datasets do not carry them)
+//  controlVariate counts a patient as risk cases and 1 - risk non-cases instead of its 0/1 draw, see add
+//  Importance-sampled cohorts (Cohort.isWeighted) add every patient with its weight, metrics are self-normalized
+class Bootstrap {
+
+    public enum Resampling {
+        MULTINOMIAL, //Classic bootstrap, n draws with replacement
+        POISSON, //Independent Poisson(1) multiplicity per patient, sample size varies around n
+        STRATIFIED //Multinomial within every age band x allele count stratum (age band only without allele counts),
+                   //stratum sizes are those of the cohort
+    }
+
+    private static final int COLUMNS = Strata.Column.values().length;
+    private static final int RISK = Strata.Column.RISK.ordinal();
+    private static final int BMI = Strata.Column.BMI.ordinal();
+    private static final int RISK_SUM = 1 << (2 * RISK);
+    private static final int RISK_SQUARE = 2 << (2 * RISK);
+    private static final int BMI_SUM = 1 << (2 * BMI);
+    private static final int BMI_SQUARE = 2 << (2 * BMI);
+    private static final double[] POISSON_CDF = poissonCdf(17);
+
+    private final Cohort patients;
+    private final int n;
+    private final Strata strata;
+    private final short[] cell; //Strata cell per patient, unsigned, its non-case cell with the control variate
+    private final int[] needs; //Strata.needs per cell
+    private final boolean weighted; //Patients carry importance weights
+    private final int caseStride; //Cell step from non-case to case, > 0 only with the control variate
+    private volatile int[] members; //Patients grouped by resampling stratum, only built for STRATIFIED
+    private int[] stratumStart; //Stratum s is members[stratumStart[s]..stratumStart[s + 1])
+
+    public Bootstrap(Cohort patients, Strata strata) {
+        this(patients, strata, false);
+    }
+
+    public Bootstrap(Cohort patients, Strata strata, boolean controlVariate) {
+        this.patients = patients;
+        this.n = patients.size();
+        this.strata = strata;
+        this.weighted = patients.isWeighted();
+        this.caseStride = controlVariate ? strata.stride(Strata.CASE) : 0;
+        if (controlVariate && caseStride == 0) {
+            throw new IllegalArgumentException("The control variate needs strata with the CASE dimension");
+        }
+        this.cell = new short[n];
+        for (int i = 0; i < n; i++) {
+            int c = strata.cell(patients, i);
+            if (caseStride > 0 && patients.hasRA(i) == 1) {
+                c -= caseStride;
+            }
+            cell[i] = (short) c;
+        }
+        this.needs = new int[strata.cells()];
+        for (int c = 0; c < needs.length; c++) {
+            needs[c] = strata.needs(c);
+        }
+    }
+
+    //Patients grouped by age band x allele count, built by the first STRATIFIED trial
+    //A cohort whose allele counts are all 0 was loaded from CSV, which does not export them, so only age bands are used
+    private synchronized void groupStrata() {
+        if (members != null) return;
+        boolean alleles = false;
+        for (int i = 0; i < n && !alleles; i++) {
+            alleles = patients.alleleCount(i) != 0;
+        }
+        if (!alleles) {
+            System.out.println("No allele counts in this cohort, STRATIFIED resampling stratifies by age band only");
+        }
+        Strata sampling = alleles ? new Strata(Strata.AGE, Strata.ALLELES) : new Strata(Strata.AGE);
+        int[] start = new int[sampling.cells() + 1];
+        int[] stratum = new int[n];
+        for (int i = 0; i < n; i++) {
+            stratum[i] = sampling.cell(patients, i);
+            start[stratum[i] + 1]++;
+        }
+        for (int s = 0; s < sampling.cells(); s++) {
+            start[s + 1] += start[s];
+        }
+        int[] grouped = new int[n];
+        int[] next = Arrays.copyOf(start, sampling.cells());
+        for (int i = 0; i < n; i++) {
+            grouped[next[stratum[i]]++] = i;
+        }
+        stratumStart = start;
+        members = grouped; //Published last, trials read it without the lock
+    }
+
+    public Accumulator accumulator() {
+        return new Accumulator(strata.cells());
+    }
+
+    //Per-worker accumulators, reused for every trial the worker runs
+    public static class Accumulator {
+        private final double[] counts; //Sums of patient weights, whole numbers for unweighted cohorts
+        private final double[][] sums;
+        private final double[][] squares;
+
+        private Accumulator(int cells) {
+            this.counts = new double[cells];
+            this.sums = new double[COLUMNS][cells];
+            this.squares = new double[COLUMNS][cells];
+        }
+
+        private void reset() {
+            Arrays.fill(counts, 0);
+            for (int c = 0; c < COLUMNS; c++) {
+                Arrays.fill(sums[c], 0.0);
+                Arrays.fill(squares[c], 0.0);
+            }
+        }
+    }
+
+    //One bootstrap trial, metric m of the strata is written to results[m]
+    public void trial(SplittableRandom random, Resampling resampling, Accumulator acc, double[] results) {
+        acc.reset();
+        if (resampling == Resampling.POISSON) {
+            for (int i = 0; i < n; i++) {
+                int w = poisson(random);
+                if (w != 0) {
+                    add(acc, i, w);
+                }
+            }
+        } else if (resampling == Resampling.STRATIFIED) {
+            if (members == null) groupStrata();
+            int[] members = this.members;
+            for (int s = 0; s + 1 < stratumStart.length; s++) {
+                int from = stratumStart[s];
+                int size = stratumStart[s + 1] - from;
+                for (int d = 0; d < size; d++) {
+                    add(acc, members[from + random.nextInt(size)], 1);
+                }
+            }
+        } else {
+            for (int d = 0; d < n; d++) {
+                add(acc, random.nextInt(n), 1);
+            }
+        }
+        for (int m = 0; m < results.length; m++) {
+            results[m] = strata.evaluate(m, acc.counts, acc.sums, acc.squares);
+        }
+    }
+
+    private void add(Accumulator acc, int i, int w) {
+        if (weighted || caseStride > 0) {
+            addWeighted(acc, i, w);
+            return;
+        }
+        int c = cell[i] & 0xFFFF;
+        acc.counts[c] += w;
+        int need = needs[c];
+        if (need == 0) return;
+        if ((need & RISK_SUM) != 0) {
+            double v = patients.risk(i);
+            acc.sums[RISK][c] += (w == 1) ? v : w * v;
+            if ((need & RISK_SQUARE) != 0) acc.squares[RISK][c] += (w == 1) ? v * v : w * v * v;
+        }
+        if ((need & BMI_SUM) != 0) {
+            double v = patients.bmi(i);
+            acc.sums[BMI][c] += (w == 1) ? v : w * v;
+            if ((need & BMI_SQUARE) != 0) acc.squares[BMI][c] += (w == 1) ? v * v : w * v * v;
+        }
+    }
+
+    //Control variate: the case draw Y has mean risk given the patient, so Y - risk is a control with known mean 0,
+    //and its variance-optimal coefficient in Y - beta (Y - risk) is exactly 1, which leaves the risk itself:
+    //the patient adds risk to its case cell and 1 - risk to its non-case cell, every cases-only metric becomes
+    //risk-weighted and no longer carries the Bernoulli noise of the 0/1 outcome draw
+    private void addWeighted(Accumulator acc, int i, int w) {
+        double weight = w * patients.weight(i);
+        int c = cell[i] & 0xFFFF;
+        if (caseStride > 0) {
+            double risk = patients.risk(i);
+            addCell(acc, c + caseStride, i, weight * risk);
+            addCell(acc, c, i, weight - weight * risk);
+        } else {
+            addCell(acc, c, i, weight);
+        }
+    }
+
+    private void addCell(Accumulator acc, int c, int i, double weight) {
+        acc.counts[c] += weight;
+        int need = needs[c];
+        if (need == 0) return;
+        if ((need & RISK_SUM) != 0) {
+            double v = patients.risk(i);
+            acc.sums[RISK][c] += weight * v;
+            if ((need & RISK_SQUARE) != 0) acc.squares[RISK][c] += weight * v * v;
+        }
+        if ((need & BMI_SUM) != 0) {
+            double v = patients.bmi(i);
+            acc.sums[BMI][c] += weight * v;
+            if ((need & BMI_SQUARE) != 0) acc.squares[BMI][c] += weight * v * v;
+        }
+    }
+
+    //Poisson(1) draw by inverse CDF, one uniform per patient
+    private static int poisson(SplittableRandom random) {
+        double u = random.nextDouble();
+        int k = 0;
+        while (k < POISSON_CDF.length - 1 && u >= POISSON_CDF[k]) {
+            k++;
+        }
+        return k;
+    }
+
+    private static double[] poissonCdf(int size) {
+        double[] cdf = new double[size];
+        double p = Math.exp(-1.0);
+        double sum = 0.0;
+        for (int k = 0; k < size; k++) {
+            sum += p;
+            cdf[k] = sum;
+            p /= (k + 1);
+        }
+        return cdf;
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+//Progress of one simulate() call, saved so a killed run can resume where it stopped
+//Trial t always draws from stream (seed, BOOTSTRAP, t), so the random state to save is just the next trial index,
+//and the merged summaries of the completed trials are saved as they are, which makes a resumed run identical
+//to an uninterrupted one
+//
+//Layout: magic "RACHECKP", int version, the scenario, int trials done, the needed[] counts, the summaries
+final class Checkpoint {
+
+    private static final byte[] MAGIC = "RACHECKP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 3;
+
+    //Everything the saved trials depend on, a checkpoint is only resumed for an equal scenario
+    record Scenario(long seed, int patients, long cohortHash, double mean, double k, String resampling,
+                    boolean controlVariate, String summary, int trials, double precision, int batchTrials, int maxTrials, String metrics) {
+
+        void write(DataOutput out) throws IOException {
+            out.writeLong(seed);
+            out.writeInt(patients);
+            out.writeLong(cohortHash);
+            out.writeDouble(mean);
+            out.writeDouble(k);
+            out.writeUTF(resampling);
+            out.writeBoolean(controlVariate);
+            out.writeUTF(summary);
+            out.writeInt(trials);
+            out.writeDouble(precision);
+            out.writeInt(batchTrials);
+            out.writeInt(maxTrials);
+            out.writeUTF(metrics);
+        }
+
+        static Scenario read(DataInput in) throws IOException {
+            return new Scenario(in.readLong(), in.readInt(), in.readLong(), in.readDouble(), in.readDouble(), in.readUTF(),
+                    in.readBoolean(), in.readUTF(), in.readInt(), in.readDouble(), in.readInt(), in.readInt(), in.readUTF());
+        }
+
+        //Same scenario with another trial count
+        Scenario withTrials(int trials) {
+            return new Scenario(seed, patients, cohortHash, mean, k, resampling, controlVariate, summary, trials, precision,
+                    batchTrials, maxTrials, metrics);
+        }
+    }
+
+    //Trials completed, per-metric convergence counts and the summaries of those trials
+    record State(int run, int[] needed, Summary[] results) {
+    }
+
+    private final Path file;
+    private final Scenario scenario;
+    private final long intervalNanos;
+    private long lastSave = System.nanoTime();
+
+    Checkpoint(String file, Scenario scenario, int intervalSeconds) {
+        this.file = Path.of(file);
+        this.scenario = scenario;
+        this.intervalNanos = intervalSeconds * 1_000_000_000L;
+    }
+
+    //Checkpoint file kept next to a results file, Results5.csv -> Results5.checkpoint
+    static String file(String results) {
+        int dot = results.lastIndexOf('.');
+        return ((dot > 0) ? results.substring(0, dot) : results) + ".checkpoint";
+    }
+
+    //Order-sensitive hash of every patient row, so a checkpoint is not resumed on a different cohort
+    //Importance weights are part of the row when the cohort has them
+    static long hash(Cohort patients) {
+        long h = patients.size();
+        for (int i = 0; i < patients.size(); i++) {
+            h = RandomStreams.mix64(h + patients.age(i));
+            h = RandomStreams.mix64(h + Double.doubleToLongBits(patients.bmi(i)));
+            h = RandomStreams.mix64(h + Double.doubleToLongBits(patients.risk(i)));
+            h = RandomStreams.mix64(h + patients.hasRA(i));
+            h = RandomStreams.mix64(h + patients.alleleCount(i)); //STRATIFIED resampling groups by it
+            if (patients.isWeighted()) {
+                h = RandomStreams.mix64(h + Double.doubleToLongBits(patients.weight(i)));
+            }
+        }
+        return h;
+    }
+
+    //Saved state, or null when there is no checkpoint yet
+    State load() throws IOException {
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!java.util.Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a checkpoint file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has checkpoint version " + version + ", this build reads " + VERSION);
+            }
+            Scenario saved = Scenario.read(in);
+            if (!saved.equals(scenario)) {
+                throw new IOException(file + " was saved for a different scenario, delete it to start over\n  saved:   "
+                        + saved + "\n  current: " + scenario);
+            }
+            int run = in.readInt();
+            int[] needed = new int[in.readInt()];
+            for (int m = 0; m < needed.length; m++) {
+                needed[m] = in.readInt();
+            }
+            Summary[] results = new Summary[in.readInt()];
+            for (int m = 0; m < results.length; m++) {
+                results[m] = Summary.read(in);
+            }
+            return new State(run, needed, results);
+        }
+    }
+
+    //Save when the interval has passed since the last save, or always when forced
+    void save(State state, boolean force) throws IOException {
+        long now = System.nanoTime();
+        if (!force && now - lastSave < intervalNanos) return;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            scenario.write(out);
+            out.writeInt(state.run());
+            out.writeInt(state.needed().length);
+            for (int m : state.needed()) {
+                out.writeInt(m);
+            }
+            out.writeInt(state.results().length);
+            for (Summary s : state.results()) {
+                s.write(out);
+            }
+        }
+        //A crash during the write leaves the previous checkpoint in place
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSave = System.nanoTime();
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+}
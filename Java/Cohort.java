@@ -0,0 +1,38 @@
+//Read access to a patient population, one value per attribute and patient index
+//ArrayCohort keeps the columns on the heap, BinaryCohort reads them from a mapped file,
+//Algo.VirtualCohort recomputes them from the patient index
+interface Cohort {
+
+    //Seed and generation settings a cohort was generated with, NaN and 0 when unknown (e.g. loaded from CSV)
+    record Parameters(long seed, double mean, double k) {
+        static final Parameters UNKNOWN = new Parameters(0, Double.NaN, Double.NaN);
+    }
+
+    int size();
+
+    //Ids are not stored, they are derived from the index
+    default String id(int i) {
+        return "P" + i;
+    }
+
+    int age(int i);
+
+    double bmi(int i);
+
+    double risk(int i);
+
+    int hasRA(int i);
+
+    int alleleCount(int i);
+
+    //Importance weight of patient i, population share over sampling share of its draw, 1 unless isWeighted()
+    default double weight(int i) {
+        return 1.0;
+    }
+
+    default boolean isWeighted() {
+        return false;
+    }
+
+    Parameters parameters();
+}
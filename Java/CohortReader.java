@@ -0,0 +1,350 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+//Memory-mapped loader for the id,age,bmi,risk,hasRA dataset format, and its weighted variant with a weight column
+//The file is split into chunks at line boundaries, every chunk can be counted and parsed on its own thread
+//Numbers are parsed straight from the mapped bytes, the id column is skipped since ids follow the row index
+class CohortReader {
+
+    private static final int CHUNK = 1 << 23; //Nominal chunk size in bytes, moved forward to the next line break
+
+    private final String filename;
+    private final MappedByteBuffer[] chunks;
+    private final boolean weighted; //Header ends with the weight column
+    private final int[] rows; //Data rows per chunk, filled by count()
+    private int[] offsets; //First row of each chunk
+
+    private CohortReader(String filename, MappedByteBuffer[] chunks, boolean weighted) {
+        this.filename = filename;
+        this.chunks = chunks;
+        this.weighted = weighted;
+        this.rows = new int[chunks.length];
+    }
+
+    public static CohortReader open(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = lineEnd(channel, 0, size); //Skip header
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(start, 4096));
+            channel.read(header, 0);
+            boolean weighted = new String(header.array(), 0, header.position(), StandardCharsets.US_ASCII).trim()
+                    .endsWith(CohortWriter.WEIGHT);
+            List<MappedByteBuffer> chunks = new ArrayList<>();
+            while (start < size) {
+                long end = lineEnd(channel, Math.min(size, start + CHUNK), size);
+                chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                start = end;
+            }
+            return new CohortReader(filename, chunks.toArray(new MappedByteBuffer[0]), weighted);
+        }
+    }
+
+    //Position just past the first line break at or after from, or size if there is none
+    private static long lineEnd(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long pos = from;
+        while (pos < size) {
+            buf.clear();
+            int read = channel.read(buf, pos);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
+    }
+
+    public boolean weighted() {
+        return weighted;
+    }
+
+    public int chunks() {
+        return chunks.length;
+    }
+
+    //First pass: count the data rows of a chunk
+    public void count(int c) {
+        MappedByteBuffer buf = chunks[c];
+        int limit = buf.limit();
+        int count = 0;
+        int lineStart = 0;
+        for (int i = 0; i < limit; i++) {
+            if (buf.get(i) == '\n') {
+                if (i > lineStart && !(i == lineStart + 1 && buf.get(lineStart) == '\r')) count++;
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < limit) count++; //Last line without a line break
+        rows[c] = count;
+    }
+
+    //Total data rows, once every chunk has been counted
+    public int rows() {
+        offsets = new int[chunks.length];
+        long total = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            offsets[c] = (int) total;
+            total += rows[c];
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalStateException(filename + " has more rows than a cohort can index: " + total);
+        }
+        return (int) total;
+    }
+
+    //Second pass: parse the rows of a chunk into their slots of the cohort
+    public void parse(int c, WritableCohort patients) {
+        MappedByteBuffer buf = chunks[c];
+        Cursor cur = new Cursor(buf);
+        int row = offsets[c];
+        while (cur.pos < cur.limit) {
+            if (cur.atLineEnd()) {
+                cur.skipLineEnd();
+                continue;
+            }
+            cur.skipField(); //Id
+            int age = (int) cur.parseLong();
+            double bmiRaw = cur.parseDouble();
+            double risk = cur.parseDouble();
+            int hasRA = (int) cur.parseLong();
+            if (weighted) {
+                patients.setWeight(row, cur.parseDouble());
+            }
+            cur.skipLineEnd();
+            patients.set(row++, age, bmiRaw, risk, hasRA, 0); //Allele count is not exported
+        }
+    }
+
+    //Field parser over one mapped chunk
+    private final class Cursor {
+        private final MappedByteBuffer buf;
+        private final int limit;
+        private int pos;
+
+        private Cursor(MappedByteBuffer buf) {
+            this.buf = buf;
+            this.limit = buf.limit();
+        }
+
+        private boolean atLineEnd() {
+            byte b = buf.get(pos);
+            return b == '\n' || b == '\r';
+        }
+
+        private void skipLineEnd() {
+            while (pos < limit && (buf.get(pos) == '\r' || buf.get(pos) == '\n')) pos++;
+        }
+
+        private void skipField() {
+            while (pos < limit && buf.get(pos) != ',') pos++;
+            pos++;
+        }
+
+        //Move past the separator that ends the current field
+        private void endField(int start) {
+            if (pos < limit) {
+                byte b = buf.get(pos);
+                if (b == ',') {
+                    pos++;
+                } else if (b != '\n' && b != '\r') {
+                    throw error(start);
+                }
+            }
+        }
+
+        private long parseLong() {
+            int start = pos;
+            boolean negative = pos < limit && buf.get(pos) == '-';
+            if (negative) pos++;
+            long value = 0;
+            int digits = 0;
+            while (pos < limit) {
+                int d = buf.get(pos) - '0';
+                if (d < 0 || d > 9) break;
+                value = value * 10 + d;
+                digits++;
+                pos++;
+            }
+            if (digits == 0 || digits > 18) throw error(start);
+            endField(start);
+            return negative ? -value : value;
+        }
+
+        private double parseDouble() {
+            int start = pos;
+            boolean negative = false;
+            if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+                negative = buf.get(pos) == '-';
+                pos++;
+            }
+            long mantissa = 0;
+            int digits = 0; //Significant digits in mantissa
+            int exp10 = 0;
+            boolean any = false;
+            boolean dot = false;
+            while (pos < limit) {
+                byte b = buf.get(pos);
+                if (b >= '0' && b <= '9') {
+                    any = true;
+                    if (digits < 19) {
+                        if (mantissa != 0 || b != '0') {
+                            mantissa = mantissa * 10 + (b - '0');
+                            digits++;
+                        }
+                        if (dot) exp10--;
+                    } else {
+                        return slowDouble(start); //Too many digits for one long
+                    }
+                } else if (b == '.' && !dot) {
+                    dot = true;
+                } else {
+                    break;
+                }
+                pos++;
+            }
+            if (!any) return slowDouble(start);
+            if (pos < limit && (buf.get(pos) == 'E' || buf.get(pos) == 'e')) {
+                pos++;
+                boolean negExp = false;
+                if (pos < limit && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+                    negExp = buf.get(pos) == '-';
+                    pos++;
+                }
+                int exp = 0;
+                int expDigits = 0;
+                while (pos < limit && buf.get(pos) >= '0' && buf.get(pos) <= '9') {
+                    if (exp < 10_000) exp = exp * 10 + (buf.get(pos) - '0');
+                    expDigits++;
+                    pos++;
+                }
+                if (expDigits == 0) return slowDouble(start);
+                exp10 += negExp ? -exp : exp;
+            }
+            double value = toDouble(mantissa, exp10, negative);
+            if (Double.isNaN(value)) return slowDouble(start);
+            endField(start);
+            return value;
+        }
+
+        //Anything the byte parser does not cover (NaN, Infinity, very long numbers) goes through Double.parseDouble
+        private double slowDouble(int start) {
+            pos = start;
+            while (pos < limit && buf.get(pos) != ',' && buf.get(pos) != '\n' && buf.get(pos) != '\r') pos++;
+            byte[] text = new byte[pos - start];
+            buf.get(start, text);
+            try {
+                double value = Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+                endField(start);
+                return value;
+            } catch (NumberFormatException e) {
+                throw error(start);
+            }
+        }
+
+        private IllegalArgumentException error(int start) {
+            int end = start;
+            while (end < limit && buf.get(end) != '\n') end++;
+            byte[] text = new byte[Math.min(end - start, 80)];
+            buf.get(start, text);
+            return new IllegalArgumentException("Malformed row in " + filename + ": " + new String(text, StandardCharsets.US_ASCII));
+        }
+    }
+
+    //Exact decimal to double conversion, NaN when the value needs the slow path
+
+    private static final double[] SMALL_POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MIN_EXP10 = -348;
+    private static final int MAX_EXP10 = 347;
+    private static final long[] POWERS_HI = new long[MAX_EXP10 - MIN_EXP10 + 1];
+    private static final long[] POWERS_LO = new long[MAX_EXP10 - MIN_EXP10 + 1];
+
+    static {
+        //128-bit mantissas of the powers of ten, rounded down
+        BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        for (int e = MIN_EXP10; e <= MAX_EXP10; e++) {
+            BigInteger m;
+            if (e >= 0) {
+                BigInteger p = BigInteger.TEN.pow(e);
+                int shift = p.bitLength() - 128;
+                m = (shift > 0) ? p.shiftRight(shift) : p.shiftLeft(-shift);
+            } else {
+                BigInteger p = BigInteger.TEN.pow(-e);
+                m = BigInteger.ONE.shiftLeft(127 + p.bitLength()).divide(p);
+            }
+            POWERS_HI[e - MIN_EXP10] = m.shiftRight(64).longValue();
+            POWERS_LO[e - MIN_EXP10] = m.and(mask).longValue();
+        }
+    }
+
+    static double toDouble(long mantissa, int exp10, boolean negative) {
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        double value;
+        if (mantissa >= 0 && mantissa < (1L << 53) && exp10 >= -22 && exp10 <= 22) {
+            //Both operands are exact, so the one rounding of the operation is the correct one
+            value = (exp10 < 0) ? mantissa / SMALL_POWERS[-exp10] : mantissa * SMALL_POWERS[exp10];
+        } else {
+            value = eiselLemire(mantissa, exp10);
+        }
+        return negative ? -value : value;
+    }
+
+    //Eisel-Lemire: multiply by a truncated 128-bit power of ten and round, unless the result is ambiguous
+    private static double eiselLemire(long mantissa, int exp10) {
+        if (exp10 < MIN_EXP10 || exp10 > MAX_EXP10) {
+            return Double.NaN;
+        }
+        int clz = Long.numberOfLeadingZeros(mantissa);
+        long man = mantissa << clz;
+        long exp2 = ((217706L * exp10) >> 16) + 64 + 1023 - clz;
+
+        long powHi = POWERS_HI[exp10 - MIN_EXP10];
+        long powLo = POWERS_LO[exp10 - MIN_EXP10];
+        long xHi = Math.unsignedMultiplyHigh(man, powHi);
+        long xLo = man * powHi;
+        if ((xHi & 0x1FF) == 0x1FF && Long.compareUnsigned(xLo + man, man) < 0) {
+            long yHi = Math.unsignedMultiplyHigh(man, powLo);
+            long yLo = man * powLo;
+            long mergedHi = xHi;
+            long mergedLo = xLo + yHi;
+            if (Long.compareUnsigned(mergedLo, xLo) < 0) mergedHi++;
+            if ((mergedHi & 0x1FF) == 0x1FF && mergedLo + 1 == 0 && Long.compareUnsigned(yLo + man, man) < 0) {
+                return Double.NaN;
+            }
+            xHi = mergedHi;
+            xLo = mergedLo;
+        }
+
+        long msb = xHi >>> 63;
+        long result = xHi >>> (msb + 9);
+        exp2 -= 1 ^ msb;
+        if (xLo == 0 && (xHi & 0x1FF) == 0 && (result & 3) == 1) {
+            return Double.NaN; //Exactly half way, let the slow path decide
+        }
+        result += result & 1;
+        result >>>= 1;
+        if ((result >>> 53) > 0) {
+            result >>>= 1;
+            exp2++;
+        }
+        if (exp2 <= 0 || exp2 >= 0x7FF) {
+            return Double.NaN; //Subnormal or overflow
+        }
+        return Double.longBitsToDouble((exp2 << 52) | (result & 0x000FFFFFFFFFFFFFL));
+    }
+}
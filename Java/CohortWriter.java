@@ -0,0 +1,50 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+//Writes cohorts in the id,age,bmi,risk,hasRA dataset format, with a trailing weight column for weighted cohorts
+//Rows are appended to a reused StringBuilder and copied out as chars, so no String is built per row
+class CohortWriter implements Closeable {
+
+    public static final String HEADER = "id,age,bmi,risk,hasRA";
+    public static final String WEIGHT = ",weight";
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final Writer out;
+    private final char[] chars = new char[1 << 16];
+
+    public CohortWriter(String filename, boolean weighted) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.US_ASCII), 1 << 16);
+        out.write(weighted ? HEADER + WEIGHT : HEADER);
+        out.write(NEWLINE);
+    }
+
+    //Format rows [from, to) of a cohort, the first row gets id P<firstId>
+    public static void format(Cohort patients, int from, int to, long firstId, StringBuilder sb) {
+        for (int i = from; i < to; i++) {
+            sb.append('P').append(firstId + (i - from)).append(',')
+                    .append(patients.age(i)).append(',')
+                    .append(patients.bmi(i)).append(',')
+                    .append(patients.risk(i)).append(',')
+                    .append(patients.hasRA(i));
+            if (patients.isWeighted()) {
+                sb.append(',').append(patients.weight(i));
+            }
+            sb.append(NEWLINE);
+        }
+    }
+
+    //Write text produced by format()
+    public void write(StringBuilder sb) throws IOException {
+        int length = sb.length();
+        for (int from = 0; from < length; from += chars.length) {
+            int to = Math.min(length, from + chars.length);
+            sb.getChars(from, to, chars, 0);
+            out.write(chars, 0, to - from);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
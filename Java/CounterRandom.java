@@ -0,0 +1,68 @@
+import java.util.random.RandomGenerator;
+
+//Counter-based generator, Philox4x32-10 (Salmon et al., "Parallel Random Numbers: As Easy as 1, 2, 3", SC 2011)
+//Block c of stream s is a pure function of (key, s, c): ten rounds of multiply and xor over the 128-bit counter (c, s)
+//There is no state to replay, seek(s) jumps to the start of any stream in O(1), so patient i's draws can be
+//recomputed from its index alone
+//
+//Draw slots are consumed in order from 0, two longs per block; nextInt/nextGaussian are the RandomGenerator defaults
+final class CounterRandom implements RandomGenerator {
+
+    private static final long M0 = 0xD2511F53L; //Round multipliers
+    private static final long M1 = 0xCD9E8D57L;
+    private static final int W0 = 0x9E3779B9; //Key schedule increments
+    private static final int W1 = 0xBB67AE85;
+
+    private final int k0;
+    private final int k1;
+    private long stream; //Counter words 2-3
+    private long slot; //Counter words 0-1, the next block of the stream
+    private long buffered; //Second long of the last block
+    private boolean hasBuffered;
+
+    //Key derived from the master seed and a RandomStreams domain
+    CounterRandom(long seed, long domain) {
+        this(RandomStreams.streamSeed(seed, domain, 0));
+    }
+
+    private CounterRandom(long key) {
+        this.k0 = (int) key;
+        this.k1 = (int) (key >>> 32);
+    }
+
+    //Restart at draw slot 0 of the given stream
+    CounterRandom seek(long stream) {
+        this.stream = stream;
+        this.slot = 0;
+        this.hasBuffered = false;
+        return this;
+    }
+
+    @Override
+    public long nextLong() {
+        if (hasBuffered) {
+            hasBuffered = false;
+            return buffered;
+        }
+        int c0 = (int) slot;
+        int c1 = (int) (slot >>> 32);
+        int c2 = (int) stream;
+        int c3 = (int) (stream >>> 32);
+        slot++;
+        int key0 = k0;
+        int key1 = k1;
+        for (int round = 0; round < 10; round++) {
+            long p0 = M0 * (c0 & 0xFFFFFFFFL);
+            long p1 = M1 * (c2 & 0xFFFFFFFFL);
+            c0 = (int) (p1 >>> 32) ^ c1 ^ key0;
+            c1 = (int) p1;
+            c2 = (int) (p0 >>> 32) ^ c3 ^ key1;
+            c3 = (int) p0;
+            key0 += W0;
+            key1 += W1;
+        }
+        buffered = (c2 & 0xFFFFFFFFL) | ((long) c3 << 32);
+        hasBuffered = true;
+        return (c0 & 0xFFFFFFFFL) | ((long) c1 << 32);
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.*;
+import java.util.Arrays;
+
+//Keeps every trial value, percentiles are read from the sorted values
+//Median and percentile indices are the ones simulate has always used, so results match the array version exactly
+class ExactSummary implements Summary {
+
+    private double[] values = new double[256];
+    private int size;
+    private boolean sorted = true;
+
+    @Override
+    public void add(double x) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = x;
+        sorted = false;
+    }
+
+    @Override
+    public void merge(Summary other) {
+        ExactSummary o = (ExactSummary) other;
+        if (size + o.size > values.length) {
+            values = Arrays.copyOf(values, Math.max(size + o.size, size * 2));
+        }
+        System.arraycopy(o.values, 0, values, size, o.size);
+        size += o.size;
+        sorted = false;
+    }
+
+    @Override
+    public long count() {
+        return size;
+    }
+
+    //Mean of the values at size/2 and size/2 + 1
+    @Override
+    public double median() {
+        sort();
+        if (size == 0) return Double.NaN;
+        return (values[size / 2] + values[Math.min(size / 2 + 1, size - 1)]) / 2.0;
+    }
+
+    @Override
+    public double quantile(double q) {
+        sort();
+        if (size == 0) return Double.NaN;
+        return values[Math.min((int) (size * q), size - 1)];
+    }
+
+    private void sort() {
+        if (!sorted) {
+            Arrays.sort(values, 0, size);
+            sorted = true;
+        }
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(Mode.EXACT.ordinal());
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeDouble(values[i]);
+        }
+    }
+
+    static ExactSummary read(DataInput in) throws IOException {
+        ExactSummary summary = new ExactSummary();
+        int size = in.readInt();
+        summary.values = new double[Math.max(size, 1)];
+        for (int i = 0; i < size; i++) {
+            summary.values[i] = in.readDouble();
+        }
+        summary.size = size;
+        summary.sorted = false;
+        return summary;
+    }
+}
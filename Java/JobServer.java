@@ -0,0 +1,292 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//Long-running local service, so a scenario costs no JVM start, JIT warm-up or dataset load
+//POST /run?mean=27&k=-0.065&trials=2500&seed=67 (or the same fields form-encoded in the body) runs one scenario and
+//streams one line per finished phase, then its results CSV; the results and metrics files are written as by simulate
+//dataset=<file> bootstraps that dataset instead of a generated population, mean, k and patients then come from it
+//
+//Requests must carry the server's token in an X-Job-Token header, it is written to <jobs>/token on start; a web page
+//cannot set that header on a cross-site post, so the loopback listener only takes jobs from local users who can read it
+//results is a bare file name inside the jobs directory, dataset a file inside the data directory
+//Jobs are numbered on from the highest Job<id> file already in the jobs directory, so a restart overwrites nothing,
+//and a results name that a running job is writing is refused with 409
+//
+//Every request runs on its own virtual thread, its generation or loading and its bootstrap take threads permits of
+//a fair semaphore with one permit per worker thread, so jobs queue in arrival order instead of oversubscribing the cores
+//Loaded datasets and drawn populations (Algo.Covariates, per seed and size) stay in memory for later jobs,
+//the least recently used beyond the limit are dropped
+final class JobServer {
+
+    //What a job simulates, fields the request leaves out come from the server's defaults
+    record Spec(String dataset, int mean, double k, int patients, int trials, long seed) {
+    }
+
+    private static final String TOKEN_HEADER = "X-Job-Token";
+    private static final Pattern JOB_FILE = Pattern.compile("Job(\\d+)\\D.*"); //Default results, metrics and checkpoints
+
+    private final int port;
+    private final int threads;
+    private final Spec defaults;
+    private final Path jobs; //Results, metrics and checkpoints of the jobs
+    private final Path data; //Datasets jobs may load, real path
+    private final byte[] token = new byte[16];
+    private final Semaphore cpu;
+    private final AtomicInteger ids;
+    private final Set<Path> running = ConcurrentHashMap.newKeySet(); //Results files of the running jobs
+    private final Map<String, FutureTask<Object>> warm; //Access order, guarded by itself
+
+    JobServer(int port, int threads, int cohorts, Spec defaults, String jobs, String data) throws IOException {
+        this.port = port;
+        this.threads = threads;
+        this.defaults = defaults;
+        this.jobs = Files.createDirectories(Path.of(jobs)).toRealPath();
+        this.data = Path.of(data).toRealPath();
+        this.ids = new AtomicInteger(lastJob(this.jobs));
+        this.cpu = new Semaphore(threads, true);
+        this.warm = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<Object>> eldest) {
+                return size() > cohorts;
+            }
+        };
+    }
+
+    //Listen on the loopback interface until the process is killed
+    void start() throws IOException {
+        new SecureRandom().nextBytes(token);
+        Path tokenFile = jobs.resolve("token");
+        Files.deleteIfExists(tokenFile);
+        try {
+            Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(tokenFile); //Not a POSIX file system, the directory's permissions apply
+        }
+        Files.writeString(tokenFile, HexFormat.of().formatHex(token));
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/run", this::run);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        System.out.println("Listening on http://localhost:" + port + "/run, " + threads + " worker threads, token in " + tokenFile);
+    }
+
+    private void run(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "POST a scenario to /run\n");
+                return;
+            }
+            String sent = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+            if (sent == null || !MessageDigest.isEqual(sent.getBytes(StandardCharsets.UTF_8),
+                    HexFormat.of().formatHex(token).getBytes(StandardCharsets.UTF_8))) {
+                respond(exchange, 403, "Send the token from " + jobs.resolve("token") + " in the " + TOKEN_HEADER
+                        + " header\n");
+                return;
+            }
+            int id = ids.incrementAndGet();
+            Map<String, String> fields = new HashMap<>();
+            Spec spec;
+            int jobThreads;
+            Path results;
+            try {
+                fields(exchange.getRequestURI().getRawQuery(), fields);
+                fields(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), fields);
+                jobThreads = Integer.parseInt(fields.getOrDefault("threads", String.valueOf(threads)));
+                if (jobThreads < 1 || jobThreads > threads) {
+                    throw new IllegalArgumentException("threads must be 1-" + threads);
+                }
+                results = results(fields.getOrDefault("results", "Job" + id + ".csv"));
+                spec = spec(fields);
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+            if (!running.add(results)) {
+                respond(exchange, 409, results.getFileName() + " is being written by a running job\n");
+                return;
+            }
+            try {
+                execute(exchange, id, spec, jobThreads, results);
+            } finally {
+                running.remove(results);
+            }
+        }
+    }
+
+    //Run a validated job and stream its progress and results
+    private void execute(HttpExchange exchange, int id, Spec spec, int jobThreads, Path results) throws IOException {
+        //Chunked, every line is flushed as the job gets there; a client that hangs up does not stop the job
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+        System.out.println("Job " + id + ": " + spec + ", " + jobThreads + " threads -> " + results);
+        line(out, "job " + id + " " + spec);
+        try {
+            if (!cpu.tryAcquire(jobThreads, 0, TimeUnit.SECONDS)) {
+                line(out, "queued");
+                cpu.acquire(jobThreads);
+            }
+            try {
+                //Only this job's phases, loading included, never those of earlier jobs
+                Metrics metrics = new Metrics(null, phase -> line(out, String.format("%-14s %8.3f s %10d %s",
+                        phase.name(), phase.seconds(), phase.items(), phase.unit())));
+                Algo.simulate(cohort(spec, jobThreads, metrics, out), results.toString(), jobThreads, spec.seed(), spec.trials(),
+                        metrics);
+            } finally {
+                cpu.release(jobThreads);
+            }
+            line(out, "results " + results.getFileName());
+            for (String row : Files.readAllLines(results)) {
+                line(out, row);
+            }
+            line(out, "done");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            line(out, "failed: interrupted");
+        } catch (Exception e) {
+            e.printStackTrace();
+            line(out, "failed: " + e);
+        }
+    }
+
+    //Highest id of the Job<id> files in jobs, 0 when there are none
+    private static int lastJob(Path jobs) throws IOException {
+        int last = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(jobs)) {
+            for (Path file : files) {
+                Matcher m = JOB_FILE.matcher(file.getFileName().toString());
+                if (m.matches() && m.group(1).length() < 10) {
+                    last = Math.max(last, Integer.parseInt(m.group(1)));
+                }
+            }
+        }
+        return last;
+    }
+
+    //Cohort of a job, its dataset or population is loaded by the first job that needs it and kept warm
+    private Cohort cohort(Spec spec, int threads, Metrics metrics, PrintWriter out) throws Exception {
+        if (spec.dataset() != null) {
+            Path file = Path.of(spec.dataset()).toAbsolutePath();
+            //A rewritten file is a new entry, the stale one ages out
+            String key = "dataset " + file + " " + Files.getLastModifiedTime(file).toMillis() + " " + Files.size(file);
+            return (Cohort) warm(key, () -> Algo.load(file.toString(), threads, metrics), out);
+        }
+        String key = "population seed " + spec.seed() + " patients " + spec.patients();
+        Algo.Covariates covariates = (Algo.Covariates) warm(key, () -> Algo.covariates(spec.patients(), spec.seed(), threads,
+                metrics), out);
+        return covariates.scenario(spec.mean(), spec.k());
+    }
+
+    //Cached value of key, computed on this thread if no other job has started on it; a failed load is not kept
+    private Object warm(String key, Callable<Object> load, PrintWriter out) throws Exception {
+        FutureTask<Object> task;
+        boolean mine = false;
+        synchronized (warm) {
+            task = warm.get(key);
+            if (task == null) {
+                task = new FutureTask<>(load);
+                warm.put(key, task);
+                mine = true;
+            }
+        }
+        line(out, (mine ? "loading " : "warm ") + key);
+        if (mine) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            synchronized (warm) {
+                warm.remove(key, task);
+            }
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        }
+    }
+
+    private Spec spec(Map<String, String> fields) {
+        for (String name : fields.keySet()) {
+            if (!List.of("dataset", "mean", "k", "patients", "trials", "seed", "threads", "results").contains(name)) {
+                throw new IllegalArgumentException("Unknown field " + name);
+            }
+        }
+        String dataset = fields.containsKey("dataset") ? dataset(fields.get("dataset")).toString() : null;
+        if (dataset != null && (fields.containsKey("mean") || fields.containsKey("k") || fields.containsKey("patients"))) {
+            throw new IllegalArgumentException("mean, k and patients describe a generated population, a dataset has its own");
+        }
+        Spec spec = new Spec(dataset,
+                Integer.parseInt(fields.getOrDefault("mean", String.valueOf(defaults.mean()))),
+                Double.parseDouble(fields.getOrDefault("k", String.valueOf(defaults.k()))),
+                Integer.parseInt(fields.getOrDefault("patients", String.valueOf(defaults.patients()))),
+                Integer.parseInt(fields.getOrDefault("trials", String.valueOf(defaults.trials()))),
+                Long.parseLong(fields.getOrDefault("seed", String.valueOf(defaults.seed()))));
+        if (spec.patients() < 1 || spec.trials() < 1) {
+            throw new IllegalArgumentException("patients and trials must be positive");
+        }
+        return spec;
+    }
+
+    //Results file of a job, a plain file name resolved in the jobs directory
+    private Path results(String name) {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.contains(":") || name.contains("..")) {
+            throw new IllegalArgumentException("results must be a file name, it is written to " + jobs);
+        }
+        return jobs.resolve(name);
+    }
+
+    //Dataset file of a job, which must lie inside the data directory once symbolic links are resolved
+    private Path dataset(String name) {
+        try {
+            Path file = data.resolve(name).normalize().toRealPath();
+            if (file.startsWith(data) && Files.isRegularFile(file)) return file;
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("No dataset " + name + " in " + data);
+        } catch (IOException e) {
+            //Unreadable, reported like a file outside the directory
+        }
+        throw new IllegalArgumentException("dataset must be a file in " + data);
+    }
+
+    //Add the fields of a query string or form body, name=value pairs joined by &
+    private static void fields(String encoded, Map<String, String> fields) {
+        if (encoded == null || encoded.isBlank()) return;
+        for (String pair : encoded.trim().split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + pair);
+            }
+            fields.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+    }
+
+    //Phases end on the job's own thread, so lines never interleave
+    private static void line(PrintWriter out, String text) {
+        out.println(text);
+        out.flush();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+//Wall time, throughput, allocation and GC activity per phase of a run
+//Every phase is also committed as a JFR event, recorded when the JVM runs with -XX:StartFlightRecording
+//Allocation and GC counters are process-wide, so phases that overlap (concurrent sweep scenarios) share them
+final class Metrics {
+
+    //Generation and loading phases of the current cohort, reported in every metrics file of the runs on it
+    //Cleared when Algo replaces the cohort, so a long-running process does not accumulate them
+    static final Metrics GLOBAL = new Metrics(null, phase -> {
+    });
+
+    //Records nothing and skips the MXBean queries, for benchmarked paths
+    static final Metrics OFF = new Metrics(null, null);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final List<GarbageCollectorMXBean> COLLECTORS = ManagementFactory.getGarbageCollectorMXBeans();
+
+    record Phase(String name, double seconds, long items, String unit, long allocated, long gcCount, long gcMillis) {
+        double rate() {
+            return (seconds > 0) ? items / seconds : 0.0;
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<>();
+    private final Metrics base; //Its phases come first in files and reports, GLOBAL or null
+    private final Consumer<Phase> listener; //Told about every phase as it ends, JobServer streams them as progress, null for OFF
+
+    //Phases of one run on the current cohort, after GLOBAL's
+    Metrics() {
+        this(GLOBAL, phase -> {
+        });
+    }
+
+    Metrics(Metrics base, Consumer<Phase> listener) {
+        this.base = base;
+        this.listener = listener;
+    }
+
+    //Start timing a phase that processes items of the given unit (patients, trials, ...)
+    Span start(String name, String unit) {
+        return new Span(name, unit);
+    }
+
+    synchronized List<Phase> phases() {
+        return new ArrayList<>(phases);
+    }
+
+    synchronized void clear() {
+        phases.clear();
+    }
+
+    private synchronized void add(Phase phase) {
+        phases.add(phase);
+    }
+
+    final class Span {
+        private final String name;
+        private final String unit;
+        private final long start;
+        private final long allocated;
+        private final long gcCount;
+        private final long gcMillis;
+        private final PhaseEvent event;
+
+        private Span(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+            boolean recording = listener != null;
+            this.allocated = recording ? allocatedBytes() : 0;
+            this.gcCount = recording ? gcCount() : 0;
+            this.gcMillis = recording ? gcMillis() : 0;
+            this.event = recording ? new PhaseEvent() : null;
+            if (recording) event.begin();
+            this.start = System.nanoTime();
+        }
+
+        //End the phase after it processed items units, null for OFF
+        Phase end(long items) {
+            if (listener == null) return null;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            event.end();
+            Phase phase = new Phase(name, seconds, items, unit, allocatedBytes() - allocated,
+                    gcCount() - gcCount, gcMillis() - gcMillis);
+            if (event.shouldCommit()) {
+                event.phase = name;
+                event.items = items;
+                event.unit = unit;
+                event.allocated = phase.allocated();
+                event.commit();
+            }
+            add(phase);
+            listener.accept(phase);
+            return phase;
+        }
+    }
+
+    //Metrics file written next to a results file, Results5.csv -> Results5_metrics.csv
+    static String file(String results) {
+        int dot = results.lastIndexOf('.');
+        return ((dot > 0) ? results.substring(0, dot) : results) + "_metrics.csv";
+    }
+
+    //The base's phases followed by this run's
+    void write(String filename) throws IOException {
+        try (PrintWriter pw = new PrintWriter(filename)) {
+            pw.println("phase,seconds,items,unit,per_second,allocated_bytes,gc_count,gc_ms");
+            for (Phase p : all()) {
+                pw.println(p.name() + "," + p.seconds() + "," + p.items() + "," + p.unit() + "," + p.rate() + ","
+                        + p.allocated() + "," + p.gcCount() + "," + p.gcMillis());
+            }
+        }
+    }
+
+    void print(PrintWriter out) {
+        for (Phase p : all()) {
+            out.printf("%-14s %8.3f s %14.0f %s/s %10.1f MB allocated, %d GCs (%d ms)%n", p.name(), p.seconds(),
+                    p.rate(), p.unit(), p.allocated() / 1e6, p.gcCount(), p.gcMillis());
+        }
+    }
+
+    private List<Phase> all() {
+        List<Phase> all = (base != null) ? base.phases() : new ArrayList<>();
+        all.addAll(phases());
+        return all;
+    }
+
+    //Bytes allocated by all threads so far, terminated pool threads included
+    private static long allocatedBytes() {
+        return THREADS.isThreadAllocatedMemorySupported() ? THREADS.getTotalThreadAllocatedBytes() : 0;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : COLLECTORS) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    //Collection time, for the stop-the-world young collections this is the pause time
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : COLLECTORS) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    @Name("ra.Phase")
+    @Label("Simulation Phase")
+    @Category("RA Simulation")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Items")
+        long items;
+
+        @Label("Unit")
+        String unit;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    //One slice of a chunk of bootstrap trials, committed by runTrials
+    @Name("ra.TrialChunk")
+    @Label("Bootstrap Trial Chunk")
+    @Category("RA Simulation")
+    static final class TrialChunkEvent extends Event {
+        @Label("First Trial")
+        long first;
+
+        @Label("Trials")
+        int trials;
+    }
+}
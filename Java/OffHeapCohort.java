@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+//Columnar patient population outside the Java heap, in direct buffers or a read-write mapped file
+//Same columns as ArrayCohort, so the cohort size is limited by RAM or disk instead of -Xmx and the GC never scans it
+//A mapped cohort is laid out as a BinaryCohort file: generated into Dataset.cohort, it is the export, and
+//BinaryCohort.open reads it back later
+//Columns are paged ByteBuffers like BinaryCohort's, the FFM API (MemorySegment, Arena) is a preview in JDK 21
+final class OffHeapCohort implements WritableCohort {
+
+    private static final int PAGE_SHIFT = 27; //Elements per buffer, keeps every buffer under 2 GB
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    private final int capacity;
+    private int size;
+    private Parameters parameters = Parameters.UNKNOWN;
+    private final ByteBuffer header; //Mapped file header, kept in step with size and parameters, null in direct memory
+    private final IntBuffer[] age;
+    private final DoubleBuffer[] bmiRaw;
+    private final DoubleBuffer[] risk;
+    private final ByteBuffer[] hasRA;
+    private final ByteBuffer[] alleleCount;
+    private final DoubleBuffer[] weight; //Only kept for importance-sampled cohorts
+
+    //Direct memory
+    OffHeapCohort(int capacity, boolean weighted) {
+        this.capacity = capacity;
+        this.header = null;
+        this.age = ints(allocate(BinaryCohort.TYPES[0]));
+        this.bmiRaw = doubles(allocate(BinaryCohort.TYPES[1]));
+        this.risk = doubles(allocate(BinaryCohort.TYPES[2]));
+        this.hasRA = allocate(BinaryCohort.TYPES[3]);
+        this.alleleCount = allocate(BinaryCohort.TYPES[4]);
+        this.weight = weighted ? doubles(allocate(Double.BYTES)) : null;
+    }
+
+    private OffHeapCohort(FileChannel channel, int capacity, boolean weighted) throws IOException {
+        this.capacity = capacity;
+        long[] offsets = BinaryCohort.offsets(capacity, weighted ? BinaryCohort.TYPES.length : BinaryCohort.REQUIRED);
+        channel.truncate(0);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, offsets[0]);
+        BinaryCohort.header(header, parameters, 0, offsets);
+        this.age = ints(map(channel, offsets[0], BinaryCohort.TYPES[0]));
+        this.bmiRaw = doubles(map(channel, offsets[1], BinaryCohort.TYPES[1]));
+        this.risk = doubles(map(channel, offsets[2], BinaryCohort.TYPES[2]));
+        this.hasRA = map(channel, offsets[3], BinaryCohort.TYPES[3]);
+        this.alleleCount = map(channel, offsets[4], BinaryCohort.TYPES[4]);
+        this.weight = weighted ? doubles(map(channel, offsets[5], BinaryCohort.TYPES[5])) : null;
+    }
+
+    //Cohort mapped onto a new BinaryCohort file, or onto an unlinked temporary file when filename is null
+    //Mappings stay valid after the channel is closed, and the temporary file's space is freed with the last of them
+    static OffHeapCohort mapped(String filename, int capacity, boolean weighted) throws IOException {
+        Path path = (filename != null) ? Path.of(filename) : Files.createTempFile("cohort", BinaryCohort.EXTENSION);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new OffHeapCohort(channel, capacity, weighted);
+        } finally {
+            if (filename == null) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    //Direct buffers of width-byte elements for capacity patients
+    private ByteBuffer[] allocate(int width) {
+        ByteBuffer[] buffers = new ByteBuffer[pages()];
+        for (int p = 0; p < buffers.length; p++) {
+            buffers[p] = ByteBuffer.allocateDirect(pageBytes(p, width)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return buffers;
+    }
+
+    //Mapped buffers of width-byte elements for capacity patients, the column starting at offset
+    private ByteBuffer[] map(FileChannel channel, long offset, int width) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[pages()];
+        for (int p = 0; p < buffers.length; p++) {
+            long position = offset + ((long) p << PAGE_SHIFT) * width;
+            buffers[p] = channel.map(FileChannel.MapMode.READ_WRITE, position, pageBytes(p, width)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return buffers;
+    }
+
+    private int pages() {
+        return Math.max(1, (int) (((long) capacity + PAGE_MASK) >>> PAGE_SHIFT));
+    }
+
+    private int pageBytes(int page, int width) {
+        long first = (long) page << PAGE_SHIFT;
+        return (int) (Math.max(0, Math.min((long) capacity - first, 1L << PAGE_SHIFT)) * width);
+    }
+
+    private static IntBuffer[] ints(ByteBuffer[] pages) {
+        IntBuffer[] buffers = new IntBuffer[pages.length];
+        for (int p = 0; p < pages.length; p++) buffers[p] = pages[p].asIntBuffer();
+        return buffers;
+    }
+
+    private static DoubleBuffer[] doubles(ByteBuffer[] pages) {
+        DoubleBuffer[] buffers = new DoubleBuffer[pages.length];
+        for (int p = 0; p < pages.length; p++) buffers[p] = pages[p].asDoubleBuffer();
+        return buffers;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Parameters parameters() {
+        return parameters;
+    }
+
+    @Override
+    public void setParameters(Parameters parameters) {
+        this.parameters = parameters;
+        if (header != null) {
+            header.putLong(BinaryCohort.PARAMETERS, parameters.seed())
+                    .putDouble(BinaryCohort.PARAMETERS + 8, parameters.mean())
+                    .putDouble(BinaryCohort.PARAMETERS + 16, parameters.k());
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public int age(int i) {
+        return age[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public double bmi(int i) {
+        return bmiRaw[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public double risk(int i) {
+        return risk[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public int hasRA(int i) {
+        return hasRA[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public int alleleCount(int i) {
+        return alleleCount[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+    }
+
+    @Override
+    public double weight(int i) {
+        return (weight != null) ? weight[i >>> PAGE_SHIFT].get(i & PAGE_MASK) : 1.0;
+    }
+
+    @Override
+    public boolean isWeighted() {
+        return weight != null;
+    }
+
+    @Override
+    public void setWeight(int i, double weight) {
+        this.weight[i >>> PAGE_SHIFT].put(i & PAGE_MASK, weight);
+    }
+
+    @Override
+    public void setRisk(int i, double risk, int hasRA) {
+        this.risk[i >>> PAGE_SHIFT].put(i & PAGE_MASK, risk);
+        this.hasRA[i >>> PAGE_SHIFT].put(i & PAGE_MASK, (byte) hasRA);
+    }
+
+    @Override
+    public void set(int i, int age, double bmiRaw, double risk, int hasRA, int alleleCount) {
+        int p = i >>> PAGE_SHIFT;
+        int j = i & PAGE_MASK;
+        this.age[p].put(j, age);
+        this.bmiRaw[p].put(j, bmiRaw);
+        this.risk[p].put(j, risk);
+        this.hasRA[p].put(j, (byte) hasRA);
+        this.alleleCount[p].put(j, (byte) alleleCount);
+    }
+
+    @Override
+    public void setSize(int n) {
+        if (n > capacity) {
+            throw new IllegalArgumentException("Size " + n + " exceeds capacity " + capacity);
+        }
+        this.size = n;
+        if (header != null) {
+            header.putLong(BinaryCohort.SIZE, n);
+        }
+    }
+}
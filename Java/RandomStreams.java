@@ -0,0 +1,35 @@
+import java.util.SplittableRandom;
+
+//Independent random streams derived from one master seed
+//Stream (seed, domain, index) is the same no matter which thread asks for it or in which order
+final class RandomStreams {
+
+    public static final long BOOTSTRAP = 1; //One stream per bootstrap trial
+    public static final long GENERATION = 2; //One stream per block of generated patients, or the CounterRandom key
+
+    //Source of the per-patient draws
+    public enum Generator {
+        PHILOX, //CounterRandom, patient i draws from counter stream i, so any patient is recomputable from its index
+        SPLITMIX //One SplittableRandom per block of patients, drawn in patient order, the format before PHILOX
+    }
+
+    private RandomStreams() {
+    }
+
+    public static SplittableRandom stream(long seed, long domain, long index) {
+        return new SplittableRandom(streamSeed(seed, domain, index));
+    }
+
+    public static long streamSeed(long seed, long domain, long index) {
+        long h = mix64(seed);
+        h = mix64(h + domain * 0xBF58476D1CE4E5B9L);
+        return mix64(h + index * 0x9E3779B97F4A7C15L);
+    }
+
+    //SplitMix64 finalizer
+    public static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+//Content-addressed cache of finished bootstrap runs, one file per scenario in a directory
+//The file name is the SHA-256 of the scenario (cohort hash, seed, resampling, control variate, summary mode, metrics, adaptive settings)
+//with the trial count left out, so a fixed-count run with more trials finds the entry of a shorter one and extends it
+//An entry keeps the summaries at the last whole segment and the summary of the partial segment after it, so an
+//extension folds exactly the segments an uncached run would
+//Least recently used entries are evicted once the directory is over its byte budget
+//
+//Layout: magic "RARESULT", int version, the Checkpoint.Scenario, int boundary, int run, the needed[] counts,
+//the boundary summaries, the tail summaries
+final class ResultCache {
+
+    private static final byte[] MAGIC = "RARESULT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 3;
+    private static final String EXTENSION = ".result";
+    private static final String TEMP = ".tmp";
+    private static final long STALE_MILLIS = 60 * 60 * 1000L; //A temporary file this old was left by a killed run
+
+    //Trials 0..boundary-1 summarized in results, trials boundary..run-1 in tail
+    record Entry(int boundary, Summary[] results, int run, Summary[] tail, int[] needed) {
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+
+    ResultCache(String directory, long maxBytes) {
+        this.directory = Path.of(directory);
+        this.maxBytes = maxBytes;
+    }
+
+    //Cached run of this scenario with any trial count, or null
+    Entry get(Checkpoint.Scenario scenario) throws IOException {
+        Path file = file(scenario);
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) return null; //Other versions are recomputed
+            Checkpoint.Scenario saved = Checkpoint.Scenario.read(in);
+            if (!saved.withTrials(0).equals(scenario.withTrials(0))) return null;
+            int boundary = in.readInt();
+            int run = in.readInt();
+            int[] needed = new int[in.readInt()];
+            for (int m = 0; m < needed.length; m++) {
+                needed[m] = in.readInt();
+            }
+            Summary[] results = read(in);
+            Summary[] tail = read(in);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())); //Recently used
+            return new Entry(boundary, results, run, tail, needed);
+        } catch (NoSuchFileException e) {
+            return null; //Evicted by a concurrent run
+        }
+    }
+
+    //Store a run unless the cache already holds a longer one of the same scenario, then evict down to the budget
+    void put(Checkpoint.Scenario scenario, Entry entry) throws IOException {
+        Entry cached = get(scenario);
+        if (cached != null && cached.run() > entry.run()) return;
+        Files.createDirectories(directory);
+        Path file = file(scenario);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), TEMP); //Concurrent jobs may store the same scenario
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                scenario.write(out);
+                out.writeInt(entry.boundary());
+                out.writeInt(entry.run());
+                out.writeInt(entry.needed().length);
+                for (int m : entry.needed()) {
+                    out.writeInt(m);
+                }
+                write(out, entry.results());
+                write(out, entry.tail());
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp); //Only left when the write or the move failed
+        }
+        evict(file);
+    }
+
+    //Delete least recently used entries until the directory fits in maxBytes, keep is never deleted
+    //Temporary files of runs killed while storing are deleted once stale, younger ones may still be written
+    private void evict(Path keep) throws IOException {
+        long stale = System.currentTimeMillis() - STALE_MILLIS;
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(directory, "*" + TEMP)) {
+            for (Path temp : temps) {
+                try {
+                    if (Files.getLastModifiedTime(temp).toMillis() < stale) Files.deleteIfExists(temp);
+                } catch (NoSuchFileException e) {
+                    //Moved into place meanwhile
+                }
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            entries.forEach(files::add);
+        }
+        long[] used = new long[files.size()];
+        long[] bytes = new long[files.size()];
+        long total = 0;
+        for (int f = 0; f < files.size(); f++) {
+            try {
+                used[f] = Files.getLastModifiedTime(files.get(f)).toMillis();
+                bytes[f] = Files.size(files.get(f));
+            } catch (NoSuchFileException e) {
+                used[f] = Long.MAX_VALUE; //Already gone
+            }
+            total += bytes[f];
+        }
+        Integer[] order = new Integer[files.size()];
+        for (int f = 0; f < order.length; f++) order[f] = f;
+        Arrays.sort(order, (a, b) -> Long.compare(used[a], used[b]));
+        for (int f : order) {
+            if (total <= maxBytes) break;
+            if (files.get(f).equals(keep)) continue;
+            Files.deleteIfExists(files.get(f));
+            total -= bytes[f];
+        }
+    }
+
+    //<SHA-256 of the scenario without its trial count>.result
+    private Path file(Checkpoint.Scenario scenario) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        scenario.withTrials(0).write(new DataOutputStream(bytes));
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray());
+            return directory.resolve(HexFormat.of().formatHex(hash) + EXTENSION);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //Every JDK provides SHA-256
+        }
+    }
+
+    private static Summary[] read(DataInput in) throws IOException {
+        Summary[] summaries = new Summary[in.readInt()];
+        for (int m = 0; m < summaries.length; m++) {
+            summaries[m] = Summary.read(in);
+        }
+        return summaries;
+    }
+
+    private static void write(DataOutput out, Summary[] summaries) throws IOException {
+        out.writeInt(summaries.length);
+        for (Summary s : summaries) {
+            s.write(out);
+        }
+    }
+}
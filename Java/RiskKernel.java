@@ -0,0 +1,84 @@
+//Batch risk scoring over feature columns
+//The linear predictor is a masked sum of the feature columns, summed in feature order from 0.0,
+//so the Vector API path and the scalar fallback give bit-identical results
+final class RiskKernel {
+
+    //Feature toggles, one bit per feature index
+    public static final int BASELINE = 1;
+    public static final int GENETICS = 1 << 1;
+    public static final int SMOKING_GENETICS = 1 << 2;
+    public static final int AGE = 1 << 3;
+    public static final int BMI = 1 << 4;
+    public static final int ALL = BASELINE | GENETICS | SMOKING_GENETICS | AGE | BMI;
+    public static final int FEATURES = 5; //Baseline, genetics, smoking-genetics, age, BMI
+
+    //Column kernel of the linear predictor, z[i] for the first count patients
+    interface LinearPredictor {
+        void linearPredictor(double[][] features, int mask, int count, double[] z);
+    }
+
+    //Vector API kernel (vector/VectorKernel.java), null unless it was built and the incubator module is present
+    //(java --add-modules jdk.incubator.vector), -Dra.vector=false forces scalar
+    static final LinearPredictor VECTORIZED = vectorized();
+    public static final boolean VECTOR = VECTORIZED != null;
+
+    //Per-worker columns for one block of patients
+    final double[][] features;
+    final double[] z;
+    final double[] risk;
+    final double[] outcome; //Uniform compared against the risk
+
+    RiskKernel(int capacity) {
+        this.features = new double[FEATURES][capacity];
+        this.z = new double[capacity];
+        this.risk = new double[capacity];
+        this.outcome = new double[capacity];
+    }
+
+    //Linear predictor and risk for the first count patients
+    void score(int count, int mask) {
+        if (VECTOR) {
+            VECTORIZED.linearPredictor(features, mask, count, z);
+        } else {
+            linearPredictor(features, mask, 0, count, z);
+        }
+        for (int i = 0; i < count; i++) {
+            risk[i] = Algo.sigmoid(z[i]);
+        }
+    }
+
+    static void linearPredictor(double[][] features, int mask, int from, int to, double[] z) {
+        for (int i = from; i < to; i++) {
+            double sum = 0.0;
+            for (int f = 0; f < features.length; f++) {
+                if ((mask & (1 << f)) != 0) {
+                    sum += features[f][i];
+                }
+            }
+            z[i] = sum;
+        }
+    }
+
+    //Loaded by name, so the engine compiles without the incubator module
+    private static LinearPredictor vectorized() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty() || "false".equals(System.getProperty("ra.vector"))) {
+            return null;
+        }
+        try {
+            return (LinearPredictor) Class.forName("VectorKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null; //Built without the vector source set
+        }
+    }
+
+    //Masked sum of one patient's features, same order as the column kernels
+    static double sum(double[] features, int mask) {
+        double sum = 0.0;
+        for (int f = 0; f < features.length; f++) {
+            if ((mask & (1 << f)) != 0) {
+                sum += features[f];
+            }
+        }
+        return sum;
+    }
+}
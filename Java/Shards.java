@@ -0,0 +1,121 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Partial results of one shard of a fixed-count bootstrap, and the merge of all shards
+//The trials are cut into segments of whole trial chunks, shard i of n runs a contiguous range of segments
+//Trial t draws from stream (seed, BOOTSTRAP, t) whichever process runs it, and a single-process run folds the
+//segment summaries in segment order too, so merging the shards in segment order gives exactly its percentiles
+//
+//Layout: magic "RAPARTIAL", int version, the Checkpoint.Scenario, int shard index, int shard count,
+//int segment count, then per segment: int first trial, int trials, the summaries
+final class Shards {
+
+    private static final byte[] MAGIC = "RAPARTIAL".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 3;
+
+    //Summaries of trials first..first+trials-1
+    record Segment(int first, int trials, Summary[] results) {
+    }
+
+    private Shards() {
+    }
+
+    //Partial file of a shard, Results5.csv -> Results5.shard0.partial
+    static String file(String results, int index) {
+        int dot = results.lastIndexOf('.');
+        return ((dot > 0) ? results.substring(0, dot) : results) + ".shard" + index + ".partial";
+    }
+
+    //Segments [from, to) of shard index out of count, segments split as evenly as possible
+    static int from(int segments, int index, int count) {
+        return (int) ((long) segments * index / count);
+    }
+
+    static void write(String file, Checkpoint.Scenario scenario, int index, int count, List<Segment> segments) throws IOException {
+        Path path = Path.of(file);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            scenario.write(out);
+            out.writeInt(index);
+            out.writeInt(count);
+            out.writeInt(segments.size());
+            for (Segment s : segments) {
+                out.writeInt(s.first());
+                out.writeInt(s.trials());
+                out.writeInt(s.results().length);
+                for (Summary summary : s.results()) {
+                    summary.write(out);
+                }
+            }
+        }
+        //A shard killed while writing leaves no partial file behind, rather than a truncated one
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    //Fold the partials of every shard into one summary per metric, checking they belong to one run
+    static Summary[] merge(String results, int count, Checkpoint.Scenario[] scenario) throws IOException {
+        List<Segment> all = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            String file = file(results, index);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(file))))) {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException(file + " is not a partial result file");
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException(file + " has partial format version " + version + ", this build reads " + VERSION);
+                }
+                Checkpoint.Scenario s = Checkpoint.Scenario.read(in);
+                if (scenario[0] == null) {
+                    scenario[0] = s;
+                } else if (!scenario[0].equals(s)) {
+                    throw new IOException(file + " was run with a different scenario than shard 0\n  shard 0: "
+                            + scenario[0] + "\n  " + file + ": " + s);
+                }
+                if (in.readInt() != index || in.readInt() != count) {
+                    throw new IOException(file + " is not shard " + index + " of " + count);
+                }
+                int segments = in.readInt();
+                for (int g = 0; g < segments; g++) {
+                    int first = in.readInt();
+                    int trials = in.readInt();
+                    Summary[] summaries = new Summary[in.readInt()];
+                    for (int m = 0; m < summaries.length; m++) {
+                        summaries[m] = Summary.read(in);
+                    }
+                    all.add(new Segment(first, trials, summaries));
+                }
+            }
+        }
+
+        //Shards hold contiguous segment ranges in shard order, so the list is in trial order
+        int next = 0;
+        Summary[] merged = null;
+        for (Segment s : all) {
+            if (s.first() != next) {
+                throw new IOException("Partial results of " + results + " do not cover trial " + next);
+            }
+            next += s.trials();
+            if (merged == null) {
+                merged = Summary.create(Summary.Mode.valueOf(scenario[0].summary()), s.results().length);
+            }
+            for (int m = 0; m < merged.length; m++) {
+                merged[m].merge(s.results()[m]);
+            }
+        }
+        if (merged == null || next != scenario[0].trials()) {
+            throw new IOException("Partial results of " + results + " cover " + next + " of " + scenario[0].trials() + " trials");
+        }
+        return merged;
+    }
+}
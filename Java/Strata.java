@@ -0,0 +1,347 @@
+import java.util.ArrayList;
+import java.util.List;
+
+//Declarative stratification for the bootstrap
+//Dimensions (age bands, BMI bins, allele count, case status) split the cohort into cells, every drawn patient
+//adds to the count and the column sums and sums of squares of its one cell, and every metric is a ratio of cell totals
+//Per-patient work depends only on which columns are summed, so 50 metrics cost about the same per trial as 13
+//
+//  Strata s = new Strata(AGE, CASE, ALLELES);
+//  s.share("prevalence 2 alleles", where(CASE, 1), where(ALLELES, 2));
+//  s.sd("BMI SD <25", Column.BMI, where(AGE, 0));
+final class Strata {
+
+    //Patient columns that can be summed per cell
+    enum Column {
+        RISK,
+        BMI
+    }
+
+    enum Statistic {
+        SHARE, //count(subset and of) / count(of)
+        MEAN, //sum(column over of) / count(of)
+        SD //Standard deviation of column over of
+    }
+
+    //Maps every patient to one of levels() levels
+    interface Dimension {
+        String name();
+
+        int levels();
+
+        int level(Cohort patients, int i);
+
+        String label(int level);
+    }
+
+    //Dimensions of the standard report
+    static final Dimension AGE = ageBands(25, 55); //<25, 25-54, 55+
+    static final Dimension CASE = cases();
+    static final Dimension OBESE = bmiBins(30.0);
+    static final Dimension ALLELES = alleleCount();
+
+    private static final int MAX_CELLS = 1 << 16; //Cell codes are stored as unsigned shorts
+
+    private final Dimension[] dimensions;
+    private final int[] stride; //Cell code = sum of level x stride over the dimensions
+    private final int cells;
+    private final List<Metric> metrics = new ArrayList<>();
+    private final int[] needs; //Per cell, bit 2c: sum of column c, bit 2c+1: its sum of squares
+    private boolean standard;
+
+    private record Metric(String name, Statistic statistic, Column column, int[] numerator, int[] denominator) {
+    }
+
+    Strata(Dimension... dimensions) {
+        this.dimensions = dimensions.clone();
+        this.stride = new int[dimensions.length];
+        long cells = 1;
+        for (int d = 0; d < dimensions.length; d++) {
+            stride[d] = (int) cells;
+            cells *= dimensions[d].levels();
+            if (cells > MAX_CELLS) {
+                throw new IllegalArgumentException("Too many cells: " + cells + ", at most " + MAX_CELLS);
+            }
+        }
+        this.cells = (int) cells;
+        this.needs = new int[this.cells];
+    }
+
+    //The 13 rows of Results*.csv: mean risk, prevalence, case BMI and case obesity, overall and per age band
+    static Strata standard() {
+        Strata s = new Strata(AGE, CASE, OBESE);
+        Filter all = Filter.ALL;
+        Filter cases = where(CASE, 1);
+        s.mean("risk", Column.RISK, all);
+        s.share("prevalence", cases, all);
+        for (int b = 0; b < AGE.levels(); b++) {
+            s.share("prevalence " + AGE.label(b), cases, where(AGE, b));
+        }
+        s.mean("case BMI", Column.BMI, cases);
+        for (int b = 0; b < AGE.levels(); b++) {
+            s.mean("case BMI " + AGE.label(b), Column.BMI, cases.and(where(AGE, b)));
+        }
+        s.share("case obesity", where(OBESE, 1), cases);
+        for (int b = 0; b < AGE.levels(); b++) {
+            s.share("case obesity " + AGE.label(b), where(OBESE, 1), cases.and(where(AGE, b)));
+        }
+        s.standard = true;
+        return s;
+    }
+
+    //True for the unmodified standard() layout, which the printed report and the GBD comparison assume
+    boolean isStandard() {
+        return standard;
+    }
+
+    Strata share(String name, Filter subset, Filter of) {
+        return add(new Metric(name, Statistic.SHARE, null, cells(subset.and(of)), cells(of)));
+    }
+
+    Strata mean(String name, Column column, Filter of) {
+        return add(new Metric(name, Statistic.MEAN, column, cells(of), cells(of)));
+    }
+
+    Strata sd(String name, Column column, Filter of) {
+        return add(new Metric(name, Statistic.SD, column, cells(of), cells(of)));
+    }
+
+    private Strata add(Metric metric) {
+        metrics.add(metric);
+        standard = false;
+        if (metric.column() != null) {
+            int bits = (metric.statistic() == Statistic.SD) ? 3 : 1;
+            for (int c : metric.numerator()) {
+                needs[c] |= bits << (2 * metric.column().ordinal());
+            }
+        }
+        return this;
+    }
+
+    int metrics() {
+        return metrics.size();
+    }
+
+    String name(int m) {
+        return metrics.get(m).name();
+    }
+
+    int cells() {
+        return cells;
+    }
+
+    //Cell of patient i
+    int cell(Cohort patients, int i) {
+        int cell = 0;
+        for (int d = 0; d < dimensions.length; d++) {
+            cell += dimensions[d].level(patients, i) * stride[d];
+        }
+        return cell;
+    }
+
+    //Column sums a cell needs, bit 2c for the sum of column c and bit 2c+1 for its sum of squares
+    int needs(int cell) {
+        return needs[cell];
+    }
+
+    //Step between the cells of consecutive levels of a dimension, 0 if it is not part of these strata
+    int stride(Dimension dimension) {
+        for (int d = 0; d < dimensions.length; d++) {
+            if (dimensions[d] == dimension) return stride[d];
+        }
+        return 0;
+    }
+
+    //Metric m from the cell totals of one trial, counts are sums of patient weights
+    double evaluate(int m, double[] counts, double[][] sums, double[][] squares) {
+        Metric metric = metrics.get(m);
+        double denominator = 0;
+        for (int c : metric.denominator()) {
+            denominator += counts[c];
+        }
+        if (denominator == 0) return 0.0;
+        switch (metric.statistic()) {
+            case SHARE: {
+                double numerator = 0;
+                for (int c : metric.numerator()) {
+                    numerator += counts[c];
+                }
+                return numerator / denominator;
+            }
+            case MEAN: {
+                double sum = 0.0;
+                for (int c : metric.numerator()) {
+                    sum += sums[metric.column().ordinal()][c];
+                }
+                return sum / denominator;
+            }
+            default: {
+                double sum = 0.0;
+                double square = 0.0;
+                for (int c : metric.numerator()) {
+                    sum += sums[metric.column().ordinal()][c];
+                    square += squares[metric.column().ordinal()][c];
+                }
+                double mean = sum / denominator;
+                return Math.sqrt(Math.max(0.0, square / denominator - mean * mean));
+            }
+        }
+    }
+
+    //Cells whose levels pass the filter
+    private int[] cells(Filter filter) {
+        int[] matches = new int[cells];
+        int count = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            if (filter.test(this, cell)) {
+                matches[count++] = cell;
+            }
+        }
+        return java.util.Arrays.copyOf(matches, count);
+    }
+
+    private int level(int cell, Dimension dimension) {
+        for (int d = 0; d < dimensions.length; d++) {
+            if (dimensions[d] == dimension) {
+                return (cell / stride[d]) % dimension.levels();
+            }
+        }
+        throw new IllegalArgumentException("Dimension " + dimension.name() + " is not part of these strata");
+    }
+
+    //Patients whose level of a dimension is one of the given levels
+    static Filter where(Dimension dimension, int... levels) {
+        return new Filter(List.of(dimension), List.of(levels.clone()));
+    }
+
+    //Conjunction of per-dimension level sets
+    static final class Filter {
+        static final Filter ALL = new Filter(List.of(), List.of());
+
+        private final List<Dimension> dimensions;
+        private final List<int[]> levels;
+
+        private Filter(List<Dimension> dimensions, List<int[]> levels) {
+            this.dimensions = dimensions;
+            this.levels = levels;
+        }
+
+        Filter and(Filter other) {
+            List<Dimension> d = new ArrayList<>(dimensions);
+            d.addAll(other.dimensions);
+            List<int[]> l = new ArrayList<>(levels);
+            l.addAll(other.levels);
+            return new Filter(d, l);
+        }
+
+        private boolean test(Strata strata, int cell) {
+            for (int f = 0; f < dimensions.size(); f++) {
+                int level = strata.level(cell, dimensions.get(f));
+                boolean any = false;
+                for (int l : levels.get(f)) {
+                    any |= (l == level);
+                }
+                if (!any) return false;
+            }
+            return true;
+        }
+    }
+
+    //Age bands split at the given ages, level b covers [cutoffs[b-1], cutoffs[b])
+    static Dimension ageBands(int... cutoffs) {
+        int[] bounds = cutoffs.clone();
+        return new Dimension() {
+            public String name() {
+                return "age";
+            }
+
+            public int levels() {
+                return bounds.length + 1;
+            }
+
+            public int level(Cohort patients, int i) {
+                int age = patients.age(i);
+                int level = 0;
+                while (level < bounds.length && age >= bounds[level]) level++;
+                return level;
+            }
+
+            public String label(int level) {
+                if (level == 0) return "<" + bounds[0];
+                if (level == bounds.length) return bounds[level - 1] + "+";
+                return bounds[level - 1] + "-" + (bounds[level] - 1);
+            }
+        };
+    }
+
+    //BMI bins split at the given values, a BMI equal to a cutoff falls in the upper bin
+    static Dimension bmiBins(double... cutoffs) {
+        double[] bounds = cutoffs.clone();
+        return new Dimension() {
+            public String name() {
+                return "bmi";
+            }
+
+            public int levels() {
+                return bounds.length + 1;
+            }
+
+            public int level(Cohort patients, int i) {
+                double bmi = patients.bmi(i);
+                int level = 0;
+                while (level < bounds.length && bmi >= bounds[level]) level++;
+                return level;
+            }
+
+            public String label(int level) {
+                if (level == 0) return "BMI<" + bounds[0];
+                if (level == bounds.length) return "BMI " + bounds[level - 1] + "+";
+                return "BMI " + bounds[level - 1] + "-" + bounds[level];
+            }
+        };
+    }
+
+    //Risk allele copies 0, 1 or 2, only known for generated cohorts (the CSV format does not export it)
+    //Dimensions are matched by identity, use ALLELES rather than a new instance per Strata
+    private static Dimension alleleCount() {
+        return new Dimension() {
+            public String name() {
+                return "alleles";
+            }
+
+            public int levels() {
+                return 3;
+            }
+
+            public int level(Cohort patients, int i) {
+                return patients.alleleCount(i);
+            }
+
+            public String label(int level) {
+                return level + " alleles";
+            }
+        };
+    }
+
+    //Level 1 for RA cases
+    //Dimensions are matched by identity, and the control variate looks for CASE, use it rather than a new instance
+    private static Dimension cases() {
+        return new Dimension() {
+            public String name() {
+                return "case";
+            }
+
+            public int levels() {
+                return 2;
+            }
+
+            public int level(Cohort patients, int i) {
+                return (patients.hasRA(i) == 1) ? 1 : 0;
+            }
+
+            public String label(int level) {
+                return (level == 1) ? "cases" : "non-cases";
+            }
+        };
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.*;
+
+//Distribution of one metric over bootstrap trials
+//Summaries of disjoint trial ranges merge into the summary of their union, so workers and separate
+//processes can each summarize their own trials and combine the results afterwards
+interface Summary {
+
+    enum Mode {
+        EXACT, //Every trial value is kept and sorted, memory grows with the trial count
+        SKETCH //Merging t-digest, memory is bounded by the compression whatever the trial count
+    }
+
+    static Summary create(Mode mode) {
+        return (mode == Mode.EXACT) ? new ExactSummary() : new TDigest(TDigest.COMPRESSION);
+    }
+
+    static Summary[] create(Mode mode, int metrics) {
+        Summary[] summaries = new Summary[metrics];
+        for (int m = 0; m < metrics; m++) {
+            summaries[m] = create(mode);
+        }
+        return summaries;
+    }
+
+    void add(double x);
+
+    //Add every trial of other into this summary, other must be of the same mode
+    void merge(Summary other);
+
+    long count();
+
+    double median();
+
+    double quantile(double q);
+
+    //Monte Carlo standard error of quantile q, from the order statistics around it:
+    //(x at q + 1.96 sqrt(q(1-q)/N) - x at q - 1.96 sqrt(q(1-q)/N)) / (2 x 1.96), which needs no density estimate
+    default double standardError(double q) {
+        long n = count();
+        if (n < 2) return Double.POSITIVE_INFINITY;
+        double half = 1.96 * Math.sqrt(q * (1 - q) / n);
+        return (quantile(Math.min(1.0, q + half)) - quantile(Math.max(0.0, q - half))) / (2 * 1.96);
+    }
+
+    //Serialized form, read back with Summary.read
+    void write(DataOutput out) throws IOException;
+
+    static Summary read(DataInput in) throws IOException {
+        Mode mode = Mode.values()[in.readUnsignedByte()];
+        return (mode == Mode.EXACT) ? ExactSummary.read(in) : TDigest.read(in);
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.*;
+import java.util.Arrays;
+
+//Merging t-digest (Dunning and Ertl): a sorted list of weighted centroids
+//Centroids are small near q = 0 and q = 1 and large around the median, so the tails the CIs come from stay accurate
+//Added values are buffered and folded in with one sort and one merge pass, memory is O(compression)
+class TDigest implements Summary {
+
+    public static final double COMPRESSION = 500; //Centroids kept are about half of this
+
+    private final double compression;
+    private double[] mean = new double[0];
+    private double[] weight = new double[0];
+    private int centroids;
+    private final double[] buffer;
+    private int buffered;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    TDigest(double compression) {
+        this.compression = compression;
+        this.buffer = new double[(int) (compression * 5)];
+    }
+
+    @Override
+    public void add(double x) {
+        if (buffered == buffer.length) {
+            compress();
+        }
+        buffer[buffered++] = x;
+        count++;
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+    }
+
+    @Override
+    public void merge(Summary other) {
+        TDigest o = (TDigest) other;
+        o.compress();
+        compress();
+        if (o.centroids == 0) return;
+        double[] m = new double[centroids + o.centroids];
+        double[] w = new double[m.length];
+        merge(mean, weight, centroids, o.mean, o.weight, o.centroids, m, w);
+        count += o.count;
+        min = Math.min(min, o.min);
+        max = Math.max(max, o.max);
+        fold(m, w, m.length);
+    }
+
+    @Override
+    public long count() {
+        return count;
+    }
+
+    @Override
+    public double median() {
+        return quantile(0.5);
+    }
+
+    //Linear interpolation between centroid centers, and out to min and max at the ends
+    @Override
+    public double quantile(double q) {
+        compress();
+        if (centroids == 0) return Double.NaN;
+        if (centroids == 1) return mean[0];
+        double index = q * count;
+        if (index < weight[0] / 2) {
+            return min + (mean[0] - min) * (index / (weight[0] / 2));
+        }
+        double cumulative = weight[0] / 2; //Center of centroid i
+        for (int i = 0; i < centroids - 1; i++) {
+            double gap = (weight[i] + weight[i + 1]) / 2;
+            if (index < cumulative + gap) {
+                return mean[i] + (mean[i + 1] - mean[i]) * ((index - cumulative) / gap);
+            }
+            cumulative += gap;
+        }
+        double last = weight[centroids - 1] / 2;
+        return mean[centroids - 1] + (max - mean[centroids - 1]) * Math.min(1.0, (index - cumulative) / last);
+    }
+
+    //Fold the buffer into the centroids
+    private void compress() {
+        if (buffered == 0) return;
+        Arrays.sort(buffer, 0, buffered);
+        double[] ones = new double[buffered];
+        Arrays.fill(ones, 1.0);
+        double[] m = new double[centroids + buffered];
+        double[] w = new double[m.length];
+        merge(mean, weight, centroids, buffer, ones, buffered, m, w);
+        buffered = 0;
+        fold(m, w, m.length);
+    }
+
+    //Merge two centroid lists sorted by mean
+    private static void merge(double[] m1, double[] w1, int n1, double[] m2, double[] w2, int n2, double[] m, double[] w) {
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < n1 + n2; k++) {
+            if (j == n2 || (i < n1 && m1[i] <= m2[j])) {
+                m[k] = m1[i];
+                w[k] = w1[i++];
+            } else {
+                m[k] = m2[j];
+                w[k] = w2[j++];
+            }
+        }
+    }
+
+    //Combine neighbours while the centroid stays within one unit of the k1 scale function
+    private void fold(double[] m, double[] w, int size) {
+        double total = 0;
+        for (int i = 0; i < size; i++) total += w[i];
+        double[] outMean = new double[Math.min(size, (int) (compression * 2) + 10)];
+        double[] outWeight = new double[outMean.length];
+        int out = 0;
+        double soFar = 0;
+        double limit = qLimit(0);
+        double cm = m[0];
+        double cw = w[0];
+        for (int i = 1; i < size; i++) {
+            if ((soFar + cw + w[i]) / total <= limit) {
+                cw += w[i];
+                cm += (m[i] - cm) * w[i] / cw;
+            } else {
+                if (out == outMean.length) {
+                    outMean = Arrays.copyOf(outMean, out * 2);
+                    outWeight = Arrays.copyOf(outWeight, out * 2);
+                }
+                outMean[out] = cm;
+                outWeight[out++] = cw;
+                soFar += cw;
+                limit = qLimit(soFar / total);
+                cm = m[i];
+                cw = w[i];
+            }
+        }
+        if (out == outMean.length) {
+            outMean = Arrays.copyOf(outMean, out + 1);
+            outWeight = Arrays.copyOf(outWeight, out + 1);
+        }
+        outMean[out] = cm;
+        outWeight[out++] = cw;
+        mean = outMean;
+        weight = outWeight;
+        centroids = out;
+    }
+
+    //Largest q a centroid starting at q0 may reach, k(q) = compression / (2 pi) * asin(2q - 1)
+    private double qLimit(double q0) {
+        double k = compression / (2 * Math.PI) * Math.asin(2 * q0 - 1) + 1;
+        if (k >= compression / 4) return 1.0;
+        return (Math.sin(k * 2 * Math.PI / compression) + 1) / 2;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        compress();
+        out.writeByte(Mode.SKETCH.ordinal());
+        out.writeDouble(compression);
+        out.writeLong(count);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeInt(centroids);
+        for (int i = 0; i < centroids; i++) {
+            out.writeDouble(mean[i]);
+            out.writeDouble(weight[i]);
+        }
+    }
+
+    static TDigest read(DataInput in) throws IOException {
+        TDigest digest = new TDigest(in.readDouble());
+        digest.count = in.readLong();
+        digest.min = in.readDouble();
+        digest.max = in.readDouble();
+        int centroids = in.readInt();
+        digest.mean = new double[centroids];
+        digest.weight = new double[centroids];
+        for (int i = 0; i < centroids; i++) {
+            digest.mean[i] = in.readDouble();
+            digest.weight[i] = in.readDouble();
+        }
+        digest.centroids = centroids;
+        return digest;
+    }
+}
@@ -0,0 +1,38 @@
+import java.io.IOException;
+
+//Cohort that generation and loading fill row by row, rows may be set from several threads as long as they differ
+//ArrayCohort keeps it on the heap, OffHeapCohort in direct memory or a mapped file
+interface WritableCohort extends Cohort {
+
+    //Where generated and loaded cohorts are kept
+    enum Storage {
+        HEAP, //ArrayCohort, limited by -Xmx
+        DIRECT, //OffHeapCohort in direct buffers, limited by -XX:MaxDirectMemorySize (defaults to -Xmx)
+        MAPPED //OffHeapCohort in a mapped temporary file, limited by disk, the OS pages it in and out
+    }
+
+    static WritableCohort create(Storage storage, int capacity, boolean weighted) throws IOException {
+        switch (storage) {
+            case DIRECT:
+                return new OffHeapCohort(capacity, weighted);
+            case MAPPED:
+                return OffHeapCohort.mapped(null, capacity, weighted);
+            default:
+                return new ArrayCohort(capacity, weighted);
+        }
+    }
+
+    int capacity();
+
+    void setParameters(Parameters parameters);
+
+    void set(int i, int age, double bmiRaw, double risk, int hasRA, int alleleCount);
+
+    void setRisk(int i, double risk, int hasRA);
+
+    //Only for weighted cohorts, see isWeighted()
+    void setWeight(int i, double weight);
+
+    //Mark the first n slots of a pre-sized cohort as filled
+    void setSize(int n);
+}
@@ -0,0 +1,46 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//A run killed part-way and resumed from its checkpoint writes the results of an uninterrupted run
+class CheckpointTest {
+
+    private static final long SEED = 67;
+    private static final int TRIALS = 9_000; //Two whole checkpoint segments and a partial one
+
+    @TempDir
+    Path dir;
+
+    //Thrown from a phase listener in place of killing the process
+    private static final class Killed extends RuntimeException {
+    }
+
+    @Test
+    void resumeAfterPartialSegment() throws Exception {
+        Cohort cohort = Algo.covariates(5_000, SEED, 2, Metrics.OFF).scenario(27, -0.065);
+        Path uninterrupted = dir.resolve("Uninterrupted.csv");
+        Path resumed = dir.resolve("Resumed.csv");
+        try (Settings s = new Settings().set("checkpoints", true).set("checkpointSeconds", 0)) {
+            Algo.simulate(cohort, uninterrupted.toString(), 2, SEED, TRIALS, Metrics.OFF);
+
+            //Killed when the second segment's trials are done, before it is saved
+            AtomicInteger segments = new AtomicInteger();
+            Metrics killer = new Metrics(null, phase -> {
+                if (phase.name().equals("bootstrap") && segments.incrementAndGet() == 2) throw new Killed();
+            });
+            assertThrows(Killed.class, () -> Algo.simulate(cohort, resumed.toString(), 2, SEED, TRIALS, killer));
+            Path checkpoint = Path.of(Checkpoint.file(resumed.toString()));
+            assertTrue(Files.exists(checkpoint));
+            assertFalse(Files.exists(resumed));
+
+            Algo.simulate(cohort, resumed.toString(), 3, SEED, TRIALS, Metrics.OFF);
+            assertFalse(Files.exists(checkpoint));
+        }
+        assertEquals(Files.readString(uninterrupted), Files.readString(resumed));
+    }
+}
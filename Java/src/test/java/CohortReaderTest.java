@@ -0,0 +1,98 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//The byte parser reads every number exactly as Double.parseDouble does
+class CohortReaderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void edgeCases() throws Exception {
+        check(List.of(
+                "0", "-0", "0.0", "-0.0", "+1", "1", "1.", "0.5", "00012.5000", "1e0", "1E+2", "1e-2", "5e-1",
+                "0.1", "0.2", "0.3", "0.7", "27.5", "1.0E-4", "4.340000000000001E-4",
+                "9007199254740993", "9007199254740992.5", "1.00000000000000011102230246251565404236316680908203125",
+                "1.0000000000000002", "0.9999999999999999", "123456789012345678", "1234567890123456789",
+                "12345678901234567890", "0.000000000000000000001234567890123456789",
+                "1.7976931348623157e308", "1.7976931348623158e308", "1.7976931348623159e308", "2e308",
+                "2.2250738585072014e-308", "2.2250738585072011e-308", "2.2250738585072012e-308",
+                "4.9e-324", "2.4703282292062327e-324", "2.4703282292062328e-324", "1e-400", "-1e-400",
+                "7.2057594037927933e16", "3.4028236692093846e38", "1e22", "1e23", "8.41e21", "5e-324",
+                "NaN", "Infinity", "-Infinity"));
+    }
+
+    //Shortest representations, which the dataset writer produces, and 17 significant digits
+    @Test
+    void randomDoubles() throws Exception {
+        SplittableRandom random = new SplittableRandom(67);
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value) || Double.isInfinite(value)) continue;
+            texts.add(Double.toString(value));
+            texts.add(String.format(Locale.ROOT, "%.16e", value));
+            texts.add(Double.toString(random.nextDouble(-10.0, 60.0)));
+        }
+        check(texts);
+    }
+
+    //Random digit strings around the 19 digits a long holds, with exponents near the subnormal and overflow ranges
+    @Test
+    void randomDigits() throws Exception {
+        SplittableRandom random = new SplittableRandom(68);
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            StringBuilder text = new StringBuilder();
+            int digits = 1 + random.nextInt(24);
+            int dot = random.nextInt(digits + 1);
+            for (int d = 0; d < digits; d++) {
+                if (d == dot) text.append('.');
+                text.append((char) ('0' + random.nextInt(10)));
+            }
+            int range = random.nextInt(3);
+            int exp = (range == 0) ? random.nextInt(-30, 30)
+                    : (range == 1) ? random.nextInt(-345, -300) : random.nextInt(290, 310);
+            texts.add(text.append('e').append(exp).toString());
+        }
+        check(texts);
+    }
+
+    //Write the texts as the bmi and risk columns of a dataset, read it back and compare bit for bit
+    private void check(List<String> texts) throws Exception {
+        Path file = dir.resolve("Dataset.csv");
+        StringBuilder csv = new StringBuilder(CohortWriter.HEADER).append('\n');
+        for (int i = 0; i < texts.size(); i++) {
+            csv.append('P').append(i).append(",30,").append(texts.get(i)).append(',')
+                    .append(texts.get(texts.size() - 1 - i)).append(",0\n");
+        }
+        Files.writeString(file, csv);
+
+        CohortReader reader = CohortReader.open(file.toString());
+        for (int c = 0; c < reader.chunks(); c++) {
+            reader.count(c);
+        }
+        ArrayCohort cohort = new ArrayCohort(reader.rows());
+        for (int c = 0; c < reader.chunks(); c++) {
+            reader.parse(c, cohort);
+        }
+        cohort.setSize(reader.rows());
+
+        assertEquals(texts.size(), cohort.size());
+        for (int i = 0; i < texts.size(); i++) {
+            assertEquals(Double.doubleToRawLongBits(Double.parseDouble(texts.get(i))), Double.doubleToRawLongBits(cohort.bmi(i)),
+                    texts.get(i));
+            assertEquals(Double.doubleToRawLongBits(Double.parseDouble(texts.get(texts.size() - 1 - i))),
+                    Double.doubleToRawLongBits(cohort.risk(i)), texts.get(texts.size() - 1 - i));
+        }
+    }
+}
@@ -0,0 +1,33 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RiskKernelTest {
+
+    //The Vector API and scalar linear predictors agree bit for bit, for every feature mask
+    //A few patients short of a whole number of vectors, so the scalar tail of VectorKernel runs too
+    @Test
+    void vectorKernelMatchesScalar() {
+        assertTrue(RiskKernel.VECTOR, "The vector kernel is not loaded, run with --add-modules jdk.incubator.vector");
+        int count = (1 << 16) - 3;
+        double[][] features = new double[RiskKernel.FEATURES][count];
+        SplittableRandom random = new SplittableRandom(67);
+        for (double[] column : features) {
+            for (int j = 0; j < count; j++) {
+                column[j] = random.nextDouble(-8.0, 3.0); //Log odds and log ORs
+            }
+        }
+        double[] vector = new double[count];
+        double[] scalar = new double[count];
+        for (int mask = 0; mask <= RiskKernel.ALL; mask++) {
+            RiskKernel.VECTORIZED.linearPredictor(features, mask, count, vector);
+            RiskKernel.linearPredictor(features, mask, 0, count, scalar);
+            for (int j = 0; j < count; j++) {
+                assertEquals(Double.doubleToRawLongBits(scalar[j]), Double.doubleToRawLongBits(vector[j]),
+                        "Mask " + mask + ", patient " + j);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+//Algo's settings are private static fields edited in place, tests set them here and close() puts the old values back
+final class Settings implements AutoCloseable {
+
+    private final Deque<Object[]> saved = new ArrayDeque<>(); //Field and its value before the first set
+
+    Settings set(String name, Object value) throws ReflectiveOperationException {
+        Field field = Algo.class.getDeclaredField(name);
+        field.setAccessible(true);
+        saved.push(new Object[] {field, field.get(null)});
+        field.set(null, value);
+        return this;
+    }
+
+    @Override
+    public void close() throws ReflectiveOperationException {
+        while (!saved.isEmpty()) {
+            Object[] entry = saved.pop();
+            ((Field) entry[0]).set(null, entry[1]);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//The merge of a sharded run writes the results of a single-process run
+class ShardsTest {
+
+    private static final long SEED = 67;
+    private static final int TRIALS = 13_000; //Four checkpoint segments, the last one partial, split 1 + 1 + 2
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void threeShardsMatchSingleRun() throws Exception {
+        Cohort cohort = Algo.covariates(5_000, SEED, 2, Metrics.OFF).scenario(27, -0.065);
+        Path single = dir.resolve("Single.csv");
+        Path merged = dir.resolve("Merged.csv");
+        Algo.simulate(cohort, single.toString(), 2, SEED, TRIALS, Metrics.OFF);
+        try (Settings s = new Settings().set("patients", cohort).set("seed", SEED).set("trials", TRIALS)) {
+            for (int shard = 0; shard < 3; shard++) {
+                s.set("threads", shard + 1); //Shards may run on different machines
+                Algo.simulateShard(merged.toString(), shard, 3);
+                assertTrue(Files.exists(Path.of(Shards.file(merged.toString(), shard))));
+            }
+            Algo.mergeShards(merged.toString(), 3);
+        }
+        assertEquals(Files.readString(single), Files.readString(merged));
+    }
+}
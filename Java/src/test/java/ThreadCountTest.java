@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Results do not depend on the number of worker threads
+class ThreadCountTest {
+
+    private static final int PATIENTS = 20_000;
+    private static final long SEED = 67;
+
+    @TempDir
+    Path dir;
+
+    //Several generation blocks, the last one partial
+    @Test
+    void generatePatients() throws Exception {
+        assertEquals(generate(1, "one.csv"), generate(4, "four.csv"));
+    }
+
+    @Test
+    void simulateFixed() throws Exception {
+        Cohort cohort = Algo.covariates(PATIENTS, SEED, 2, Metrics.OFF).scenario(27, -0.065);
+        assertEquals(simulate(cohort, 1, "one.csv"), simulate(cohort, 3, "three.csv"));
+    }
+
+    //Adaptive batches are smaller than a trial chunk per thread, and sketches depend on the merge order
+    @Test
+    void simulateAdaptiveSketch() throws Exception {
+        Cohort cohort = Algo.covariates(PATIENTS, SEED, 2, Metrics.OFF).scenario(27, -0.065);
+        try (Settings s = new Settings().set("summary", Summary.Mode.SKETCH).set("precision", 0.05)
+                .set("batchTrials", 300).set("maxTrials", 1_500)) {
+            assertEquals(simulate(cohort, 1, "one.csv"), simulate(cohort, 4, "four.csv"));
+        }
+    }
+
+    private String generate(int threads, String name) throws Exception {
+        Path dataset = dir.resolve(name);
+        //patients is restored too, generatePatients replaces the loaded cohort
+        try (Settings s = new Settings().set("n", 150_000).set("threads", threads).set("patients", new ArrayCohort(0))) {
+            Algo.generatePatients(27, dataset.toString(), -0.065);
+        }
+        return Files.readString(dataset);
+    }
+
+    private String simulate(Cohort cohort, int threads, String name) throws Exception {
+        Path results = dir.resolve(name);
+        Algo.simulate(cohort, results.toString(), threads, SEED, 700, Metrics.OFF);
+        return Files.readString(results);
+    }
+}
@@ -0,0 +1,26 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+//Vector API version of RiskKernel.linearPredictor
+//Compiled on its own with the incubator module (see pom.xml), RiskKernel loads it by name when the module is present,
+//so the engine builds and runs without it
+final class VectorKernel implements RiskKernel.LinearPredictor {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void linearPredictor(double[][] features, int mask, int count, double[] z) {
+        int bound = SPECIES.loopBound(count);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (int f = 0; f < features.length; f++) {
+                if ((mask & (1 << f)) != 0) {
+                    sum = sum.add(DoubleVector.fromArray(SPECIES, features[f], i));
+                }
+            }
+            sum.intoArray(z, i);
+        }
+        RiskKernel.linearPredictor(features, mask, i, count, z);
+    }
+}